@@ -0,0 +1,208 @@
+package com.poolgame;
+
+import javax.swing.SwingUtilities;
+import java.awt.Canvas;
+import java.awt.DisplayMode;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Draws a scene onto a Canvas through a BufferStrategy, instead of waiting
+ * for Swing to get round to a repaint. A render thread decides when to draw:
+ * every frame while the scene is animating, otherwise only once something
+ * asked for a frame, and never faster than maxFPS or the display's refresh
+ * rate where that is known. Requests in between are folded into the next
+ * frame, so a burst of mouse events costs one frame rather than one each.
+ *
+ * The scene is drawn on the EDT, which owns the game state; the render
+ * thread only paces frames. Java has no public way to wait for vsync, so
+ * pacing to the refresh rate plus Toolkit.sync() stands in for it.
+ */
+public class ActiveRenderer implements Runnable {
+  public interface Scene {
+    // draws one frame in component coordinates; called on the EDT
+    void draw(Graphics2D g);
+    // true while every frame differs from the last, e.g. balls rolling
+    boolean isAnimating();
+  }
+
+  public static final int defaultMaxFPS = 120;
+
+  private final Scene scene;
+  private final Surface surface = new Surface();
+  private volatile int maxFPS = defaultMaxFPS;
+  // 0 if unknown
+  private volatile int refreshRate = 0;
+
+  // the render thread, or null when stopped; a stopped thread exits
+  private Thread thread = null;
+  private boolean requested = false;
+
+  // frames drawn in the current second, and the rate over the last one
+  private long frames = 0, secondStart = 0;
+  private volatile long frameNanos = 0, lastFrame = 0;
+  private volatile int fps = 0;
+
+  // only touched on the EDT
+  private BufferStrategy strategy = null;
+
+  private final Runnable drawFrame = new Runnable() {
+    public void run() {
+      if (strategy == null || !surface.isDisplayable()) return;
+      do {
+        do {
+          final Graphics2D g = (Graphics2D)strategy.getDrawGraphics();
+          try {
+            scene.draw(g);
+          } finally {
+            g.dispose();
+          }
+        } while (strategy.contentsRestored());
+        strategy.show();
+      } while (strategy.contentsLost());
+    }
+  };
+
+  public ActiveRenderer(Scene scene) {
+    this.scene = scene;
+  }
+
+  // the component frames are drawn on; add it where the scene should appear
+  public Canvas getSurface() {
+    return surface;
+  }
+
+  public void setMaxFPS(int maxFPS) {
+    this.maxFPS = Math.max(1, maxFPS);
+  }
+
+  public int getMaxFPS() {
+    return maxFPS;
+  }
+
+  // 0 once nothing has been drawn for a second, as when idle
+  public int getFPS() {
+    return System.nanoTime() - lastFrame > 1000000000L ? 0 : fps;
+  }
+
+  // time between frames, from the cap or the display, whichever is slower
+  public long getFrameNanos() {
+    final int rate = refreshRate > 0 ? Math.min(maxFPS, refreshRate) : maxFPS;
+    return 1000000000L / rate;
+  }
+
+  // asks for a frame; any number of calls before it is drawn make one frame
+  public synchronized void requestFrame() {
+    requested = true;
+    notifyAll();
+  }
+
+  public synchronized void start() {
+    if (thread != null) return;
+    requested = true;
+    thread = new Thread(this, "Render");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // ends the render thread; a frame already being drawn is finished first
+  public synchronized void stop() {
+    if (thread == null) return;
+    thread.interrupt();
+    thread = null;
+    notifyAll();
+  }
+
+  public synchronized boolean isRunning() {
+    return thread != null;
+  }
+
+  public void run() {
+    final Thread self = Thread.currentThread();
+    long next = System.nanoTime();
+    while (true) {
+      synchronized (this) {
+        try {
+          while (thread == self && !requested && !scene.isAnimating()) wait();
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (thread != self) return;
+      }
+
+      // not before the next frame is due
+      final long wait = next - System.nanoTime();
+      if (wait > 0) LockSupport.parkNanos(wait);
+      synchronized (this) {
+        requested = false;
+      }
+
+      final long start = System.nanoTime();
+      try {
+        SwingUtilities.invokeAndWait(drawFrame);
+      } catch (InterruptedException e) {
+        return;
+      } catch (InvocationTargetException e) {
+        // as Swing would with a failed paint: report it and carry on
+        e.getCause().printStackTrace();
+      }
+      Toolkit.getDefaultToolkit().sync();
+      count(start, System.nanoTime());
+      next = start + getFrameNanos();
+    }
+  }
+
+  private void count(long start, long end) {
+    frameNanos = end - start;
+    lastFrame = end;
+    frames++;
+    if (end - secondStart >= 1000000000L) {
+      fps = (int)Math.round(frames * 1e9 / (end - secondStart));
+      frames = 0;
+      secondStart = end;
+    }
+  }
+
+  public String toString() {
+    return String.format("active, %d fps (cap %d), %.1f ms a frame", getFPS(), 1000000000L / getFrameNanos(), frameNanos / 1e6);
+  }
+
+  private class Surface extends Canvas {
+    private static final long serialVersionUID = 1L;
+
+    Surface() {
+      // keep keyboard focus, and the menu shortcuts, with Swing
+      setFocusable(false);
+    }
+
+    public void addNotify() {
+      super.addNotify();
+      createBufferStrategy(2);
+      strategy = getBufferStrategy();
+      final GraphicsConfiguration gc = getGraphicsConfiguration();
+      refreshRate = gc == null ? 0 : gc.getDevice().getDisplayMode().getRefreshRate();
+      if (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN) refreshRate = 0;
+      requestFrame();
+    }
+
+    public void removeNotify() {
+      if (strategy != null) strategy.dispose();
+      strategy = null;
+      super.removeNotify();
+    }
+
+    // exposed or resized: draw it again on the render thread
+    public void paint(Graphics g) {
+      requestFrame();
+    }
+
+    public void update(Graphics g) {
+      requestFrame();
+    }
+  }
+}
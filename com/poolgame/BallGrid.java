@@ -0,0 +1,81 @@
+package com.poolgame;
+
+import java.util.Arrays;
+
+/*
+ * Uniform grid over the table, used as the broadphase for ball-ball
+ * contacts. A ball is entered in every cell its bounding box touches (while
+ * stepping, the box it sweeps over the rest of the tick), so two balls can
+ * only touch if they share a cell. Entries are pooled in int arrays and the
+ * pool only grows, so a table of a steady size stops allocating.
+ */
+class BallGrid {
+  final double cellSize, minX, minY;
+  final int cols, rows;
+
+  private final int[] head;
+  private final int[] used;
+  private int usedCount = 0;
+
+  private int[] entryBall, entryNext;
+  private int entries = 0;
+
+  BallGrid(double cellSize, double minX, double minY, double maxX, double maxY, int expectedEntries) {
+    this.cellSize = cellSize; this.minX = minX; this.minY = minY;
+    cols = Math.max(1, (int)Math.ceil((maxX - minX) / cellSize));
+    rows = Math.max(1, (int)Math.ceil((maxY - minY) / cellSize));
+    head = new int[cols * rows];
+    used = new int[cols * rows];
+    Arrays.fill(head, -1);
+    entryBall = new int[Math.max(16, expectedEntries)];
+    entryNext = new int[entryBall.length];
+  }
+
+  void clear() {
+    for (int k = 0; k < usedCount; k++) head[used[k]] = -1;
+    usedCount = 0;
+    entries = 0;
+  }
+
+  // positions off the grid fall into the edge cells
+  int col(double x) {
+    final int c = (int)((x - minX) / cellSize);
+    return c < 0 ? 0 : (c >= cols ? cols - 1 : c);
+  }
+
+  int row(double y) {
+    final int r = (int)((y - minY) / cellSize);
+    return r < 0 ? 0 : (r >= rows ? rows - 1 : r);
+  }
+
+  void insert(int ball, double x0, double y0, double x1, double y1) {
+    final int c1 = col(x1), r1 = row(y1);
+    for (int r = row(y0); r <= r1; r++) {
+      for (int c = col(x0); c <= c1; c++) {
+        final int cell = r * cols + c;
+        if (entries == entryBall.length) grow();
+        if (head[cell] == -1) used[usedCount++] = cell;
+        entryBall[entries] = ball;
+        entryNext[entries] = head[cell];
+        head[cell] = entries++;
+      }
+    }
+  }
+
+  int head(int c, int r) {
+    return head[r * cols + c];
+  }
+
+  int next(int entry) {
+    return entryNext[entry];
+  }
+
+  int ball(int entry) {
+    return entryBall[entry];
+  }
+
+  private void grow() {
+    entryBall = Arrays.copyOf(entryBall, entryBall.length * 2);
+    entryNext = Arrays.copyOf(entryNext, entryNext.length * 2);
+  }
+}
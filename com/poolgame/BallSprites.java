@@ -0,0 +1,134 @@
+package com.poolgame;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Balls drawn once into images and after that only copied to the screen.
+ * There is a sprite for each ball number, radius and rotation, with the
+ * number spot's offset rounded to a sixth of a radius, made at the pixel
+ * size the table is drawn at and shadow included. They are all thrown away
+ * when the scale or the font changes, and once they take up more than
+ * maxBytes the least recently drawn go first. Only used from the EDT.
+ */
+public class BallSprites {
+  // steps the number spot moves in, as a fraction of the radius
+  public static final double rotQuantum = 1.0 / 6;
+  public static final long maxBytes = 32 << 20;
+
+  private static final Color spot = new Color(240, 240, 240);
+  private static final Color gloss = new Color(255, 255, 255, 48);
+  private static final AffineTransform identity = new AffineTransform();
+
+  private final LinkedHashMap<Long, BufferedImage> sprites = new LinkedHashMap<Long, BufferedImage>(64, 0.75f, true);
+  private long bytes = 0;
+  private double scale = 0;
+  private Font font = null;
+  private long hits = 0, misses = 0;
+
+  public void draw(Graphics2D g2, Font font, int number, boolean isStriped, double x, double y, double rotX, double rotY, int R) {
+    final AffineTransform at = g2.getTransform();
+    final double s = at.getScaleX();
+    // rotated, flipped or squashed: no sprite would fit, so paint it
+    if (s <= 0 || s != at.getScaleY() || at.getShearX() != 0 || at.getShearY() != 0) {
+      paint(g2, font, number, isStriped, x, y, rotX, rotY, R);
+      g2.setClip(null);
+      return;
+    }
+    if (s != scale || !font.equals(this.font)) {
+      sprites.clear();
+      bytes = 0;
+      scale = s; this.font = font;
+    }
+
+    final int qx = (int)Math.round(rotX / (R * rotQuantum)), qy = (int)Math.round(rotY / (R * rotQuantum));
+    final long key = (((((long)(number + 1) * 2 + (isStriped ? 1 : 0)) * 4096 + R) * 1024 + qx + 512) * 1024) + qy + 512;
+    BufferedImage sprite = sprites.get(key);
+    if (sprite == null) {
+      misses++;
+      sprite = render(font, number, isStriped, qx * R * rotQuantum, qy * R * rotQuantum, R, s);
+      sprites.put(key, sprite);
+      bytes += bytes(sprite);
+      final Iterator<BufferedImage> eldest = sprites.values().iterator();
+      while (bytes > maxBytes && sprites.size() > 1) {
+        bytes -= bytes(eldest.next());
+        eldest.remove();
+      }
+    } else {
+      hits++;
+    }
+
+    // the sprite's corner is the shadow's, a little up and left of the ball
+    final int dx = (int)Math.round((x - R - 1) * s + at.getTranslateX());
+    final int dy = (int)Math.round((y - R - 2) * s + at.getTranslateY());
+    g2.setTransform(identity);
+    g2.drawImage(sprite, dx, dy, null);
+    g2.setTransform(at);
+  }
+
+  public int size() {
+    return sprites.size();
+  }
+
+  private static long bytes(BufferedImage sprite) {
+    return 4L * sprite.getWidth() * sprite.getHeight();
+  }
+
+  public String toString() {
+    final long total = hits + misses;
+    return String.format("%d sprites (%d KB), %.1f%% hits", sprites.size(), bytes >> 10, total == 0 ? 0 : 100.0 * hits / total);
+  }
+
+  private static BufferedImage render(Font font, int number, boolean isStriped, double rotX, double rotY, int R, double s) {
+    final int size = (int)Math.ceil((2 * R + 13) * s) + 1;
+    final BufferedImage sprite = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = sprite.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.scale(s, s);
+    g.translate(R + 1, R + 2);
+    paint(g, font, number, isStriped, 0, 0, rotX, rotY, R);
+    g.dispose();
+    return sprite;
+  }
+
+  // the ball from primitives, centred on (x, y); leaves a clip set
+  public static void paint(Graphics2D g2, Font font, int number, boolean isStriped, double x, double y, double rotX, double rotY, int R) {
+    g2.setColor(PoolGame.shadow);
+    g2.fillOval((int)x-R, (int)y-R-1, 2*R+10, 2*R+10);
+
+    g2.setColor(PoolGame.colorOf(number));
+    g2.fillOval((int)x-R, (int)y-R, 2*R, 2*R);
+
+    g2.setClip(new Ellipse2D.Double(x-R, y-R, 2*R, 2*R));
+
+    if (isStriped) {
+      g2.setColor(spot);
+      g2.fillRect((int)x-R, (int)y-R, 16, R*2);
+      g2.fillRect((int)x+R-16, (int)y-R, 16, R*2);
+    }
+
+    if (number > 0) {
+      g2.setColor(spot);
+      g2.fillOval((int)(x+rotX-R/2), (int)(y+rotY-R/2), R, R);
+
+      g2.setColor(Color.BLACK);
+      g2.setFont(font.deriveFont((float)R * 25 / 40));
+      final String num = Integer.toString(number);
+      final int width = g2.getFontMetrics().stringWidth(num);
+      g2.drawString(num, (int)(x+rotX-width/2), (int)(y+rotY+12));
+    }
+
+    g2.setColor(number == -1 ? Color.WHITE : PoolGame.shine);
+    g2.fillOval((int)x-R, (int)y-R, 20, 20);
+
+    g2.setColor(gloss);
+    g2.fillOval((int)x-R-1, (int)y-R-1, 2*R-10, 2*R-10);
+  }
+}
@@ -0,0 +1,191 @@
+package com.poolgame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/*
+ * A stronger, slower search. Starts from the ghost-ball pots and a spread of
+ * shots sampled at random over angle, power and spin, plays each out to rest
+ * and keeps the best few. Each round after that tries small changes to the
+ * survivors, finer every time, until the rollout budget or the time runs
+ * out.
+ *
+ * Shots are judged a turn ahead. Besides what goes down, a shot that keeps
+ * the turn is worth more the easier the pot it leaves from where the cue ball
+ * stops, and one that hands the turn over is worth less the easier it leaves
+ * things for the opponent. The budget is per core, so it plays better the
+ * more cores it gets.
+ */
+public class BeamSearch extends ShotSearch {
+  public int rolloutsPerCore = 1000;
+  // a fixed total instead, the same whatever the machine, if above 0
+  public int maxRollouts = 0;
+  public int beamWidth = 8, samples = 64, children = 8;
+  // what the position left behind is worth, against a ball potted
+  public double lookahead = 0.6;
+  // spread of the first round of changes; each round after is narrower
+  public double angleSigma = 0.05, drawbackSigma = 0.15, spinSigma = 0.3, narrowing = 0.7;
+  public double minDrawback = Shot.maxDrawback * 0.15;
+  public Random random = new Random();
+
+  private static final double WON = 100;
+
+  private Shot beamBest = null;
+  private double beamBestValue = Double.NEGATIVE_INFINITY;
+  private int beamBestOrder = Integer.MAX_VALUE;
+  // shots handed out for rollouts so far; also breaks ties in offer()
+  private int planned = 0;
+
+  private static class Scored {
+    final Shot shot;
+    final double value;
+
+    Scored(Shot shot, double value) {
+      this.shot = shot; this.value = value;
+    }
+  }
+
+  public BeamSearch(TableSimulation table, boolean turn, Boolean turn0IsSolid) {
+    super(table, turn, turn0IsSolid);
+  }
+
+  public Shot findShot() {
+    final Shot opening = bestBreak();
+    if (opening != null) return opening;
+
+    final Shot fallback = straightAt(eightBall != -1 ? eightBall : firstTarget());
+
+    final List<ShotGeometry.Candidate> pots = new ArrayList<ShotGeometry.Candidate>();
+    for (int b = 1; b < table.size(); b++) {
+      if (table.isScored(b)) continue;
+      if (eightBall != -1 ? b == eightBall : table.number(b) != 8 && isOurs(b)) geometry.addCandidates(b, pots);
+    }
+    ShotGeometry.sort(pots);
+    final List<Shot> seeds = new ArrayList<Shot>();
+    for (ShotGeometry.Candidate c : pots) seeds.add(c.shot);
+    for (int k = 0; k < samples; k++) seeds.add(randomShot());
+
+    final int budget = maxRollouts > 0 ? maxRollouts : rolloutsPerCore * parallelism();
+    List<Scored> beam = evaluate(seeds, budget);
+    double narrow = 1;
+    while (!beam.isEmpty() && planned < budget && !isStopped()) {
+      final List<Shot> next = new ArrayList<Shot>();
+      for (Scored s : beam) {
+        for (int k = 0; k < children; k++) next.add(perturb(s.shot, narrow));
+      }
+      final List<Scored> merged = new ArrayList<Scored>(beam);
+      merged.addAll(evaluate(next, budget));
+      beam = top(merged);
+      narrow *= narrowing;
+    }
+
+    final Shot best = getBest();
+    return best != null ? best : fallback;
+  }
+
+  public synchronized Shot getBest() {
+    return beamBest != null ? beamBest : super.getBest();
+  }
+
+  // earliest shot wins a tie, so a seeded search always picks the same one
+  private synchronized void offer(Shot shot, double value, int order) {
+    if (value > beamBestValue || (value == beamBestValue && order < beamBestOrder)) {
+      beamBest = shot; beamBestValue = value; beamBestOrder = order;
+    }
+  }
+
+  // plays out as many of the shots as the budget allows, best few first
+  private List<Scored> evaluate(List<Shot> shots, int budget) {
+    if (shots.size() > budget - planned) shots = shots.subList(0, Math.max(budget - planned, 0));
+    final int first = planned;
+    planned += shots.size();
+
+    final List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+    for (int k = 0; k < shots.size(); k++) {
+      final Shot shot = shots.get(k);
+      final int order = first + k;
+      tasks.add(new Callable<Double>() {
+        public Double call() {
+          final Double value = value(shot);
+          if (value != null) offer(shot, value, order);
+          return value;
+        }
+      });
+    }
+    final List<Double> values = invokeAll(tasks);
+    final List<Scored> scored = new ArrayList<Scored>();
+    for (int k = 0; k < shots.size(); k++) {
+      if (values.get(k) != null) scored.add(new Scored(shots.get(k), values.get(k)));
+    }
+    return top(scored);
+  }
+
+  private List<Scored> top(List<Scored> scored) {
+    Collections.sort(scored, new Comparator<Scored>() {
+      public int compare(Scored a, Scored b) {
+        return Double.compare(b.value, a.value);
+      }
+    });
+    return scored.size() > beamWidth ? new ArrayList<Scored>(scored.subList(0, beamWidth)) : scored;
+  }
+
+  // the shot's score plus how good the next turn looks, or null if stopped
+  Double value(Shot shot) {
+    final TableSimulation t = scratch();
+    final ShotOutcome outcome = playFrom(table, tableKey, shot, t);
+    if (outcome == null) return null;
+
+    // the 8-ball going down with the cue ball is LOST here, not a scratch
+    final int score = score(outcome);
+    if (score == LOST) return (double)LOST;
+    // ball in hand for them
+    if (outcome.isScratch()) return score - lookahead;
+    if (eightBall != -1 && outcome.isPotted(eightBall)) return WON;
+    if (score > 0) return score + lookahead * easiestPot(t, true);
+    return score - lookahead * easiestPot(t, false);
+  }
+
+  /*
+   * Ease of the easiest pot whoever shoots next has on t, for us or for the
+   * opponent, or 0 if there is none.
+   */
+  private double easiestPot(TableSimulation t, boolean ours) {
+    final ShotGeometry g = new ShotGeometry(t);
+    final List<ShotGeometry.Candidate> pots = new ArrayList<ShotGeometry.Candidate>();
+    int eight = -1; boolean ballsLeft = false;
+    for (int b = 1; b < t.size(); b++) {
+      if (t.isScored(b)) continue;
+      if (t.number(b) == 8) { eight = b; continue; }
+      if (turn0IsSolid != null && isOurs(b) != ours) continue;
+      ballsLeft = true;
+      g.addCandidates(b, pots);
+    }
+    if (!ballsLeft && eight != -1) g.addCandidates(eight, pots);
+
+    double best = 0;
+    for (ShotGeometry.Candidate c : pots) best = Math.max(best, c.ease);
+    return best;
+  }
+
+  private Shot randomShot() {
+    final double angle = random.nextDouble() * 2 * Math.PI;
+    final double drawback = minDrawback + random.nextDouble() * (Shot.maxDrawback - minDrawback);
+    // uniform over the spin dial
+    final double r = Math.sqrt(random.nextDouble()), theta = random.nextDouble() * 2 * Math.PI;
+    return new Shot(Math.sin(angle), Math.cos(angle), r * Math.cos(theta), r * Math.sin(theta), drawback);
+  }
+
+  private Shot perturb(Shot shot, double narrow) {
+    final double angle = Math.atan2(shot.stickDX, shot.stickDY) + random.nextGaussian() * angleSigma * narrow;
+    final double drawback = TableSimulation.clamp(shot.drawback * (1 + random.nextGaussian() * drawbackSigma * narrow), minDrawback, Shot.maxDrawback);
+    double spinX = shot.spinX + random.nextGaussian() * spinSigma * narrow;
+    double spinY = shot.spinY + random.nextGaussian() * spinSigma * narrow;
+    final double mag = Math.sqrt(spinX * spinX + spinY * spinY);
+    if (mag > 1) { spinX /= mag; spinY /= mag; }
+    return new Shot(Math.sin(angle), Math.cos(angle), spinX, spinY, drawback);
+  }
+}
@@ -0,0 +1,315 @@
+package com.poolgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Outcomes of break shots, worked out ahead of time. The rack never changes,
+ * so what a break does depends only on where the cue ball sits and how it is
+ * struck. The generator plays every combination of cue spot, angle, drawback
+ * and spin on a grid and writes the results to a file; the game maps the file
+ * and looks breaks up instead of playing them out.
+ *
+ *   java -cp bin com.poolgame.BreakTable [file] [xs] [ys] [angles] [drawbacks] [spins]
+ *
+ * The file is a header describing the grid and the rack it was made from,
+ * then one fixed-size record per grid point, so any shot is found by its
+ * indices alone. Spins outside the unit disc cannot be played, as with
+ * ShotBatch.grid(), so those points of the spins x spins grid are left
+ * out. A record holds the balls that dropped (as a mask, and which went
+ * first), where the cue ball stopped, the first ball it hit, how long the
+ * break ran and whether it settled or was cut off at the time limit.
+ */
+public class BreakTable {
+  public static final String defaultFile = "breaks.bin";
+  // the cue ball spots cover this box, from the spot PoolGame racks the cue
+  // ball on back towards the cushion; a single row sits on that spot
+  public static final double minX = -400, maxX = 400, minY = 600, maxY = 900;
+
+  private static final int MAGIC = 0x42524b31, VERSION = 3;
+  private static final int HEADER = 96, RECORD = 10;
+  private static final int CUE = TableSimulation.CUE;
+  // the time is kept in hundredths under the end reason, in the top two bits
+  private static final int TIME_BITS = 14, TIME_MASK = (1 << TIME_BITS) - 1;
+
+  public final int xs, ys, angles, drawbacks, spins;
+  private final int R, balls;
+  private final long rack;
+  private final MappedByteBuffer buffer;
+  // the playable spins, as indices along the grid's axes, in record order
+  private final int[] spinXs, spinYs;
+
+  public static void main(String[] args) throws IOException {
+    final File file = new File(args.length > 0 ? args[0] : defaultFile);
+    final int xs = args.length > 1 ? Integer.parseInt(args[1]) : 9;
+    final int ys = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    final int angles = args.length > 3 ? Integer.parseInt(args[3]) : 180;
+    final int drawbacks = args.length > 4 ? Integer.parseInt(args[4]) : 6;
+    final int spins = args.length > 5 ? Integer.parseInt(args[5]) : 3;
+
+    final long start = System.nanoTime();
+    final BreakTable table = generate(file, xs, ys, angles, drawbacks, spins);
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%d breaks in %.1f s (%.0f/s), %d bytes in %s%n",
+      table.size(), seconds, table.size() / seconds, file.length(), file);
+  }
+
+  /*
+   * Plays every break on the grid, one cue spot at a time across the AI's
+   * pool, and writes the table to file.
+   */
+  public static BreakTable generate(File file, int xs, int ys, int angles, int drawbacks, int spins) throws IOException {
+    final TableSimulation rack = new TableSimulation(16);
+    PoolGame.rack(rack);
+    final long size = (long)xs * ys * angles * drawbacks * spinCount(spins);
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      raf.setLength(HEADER + size * RECORD);
+      final MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + size * RECORD);
+      out.putInt(0, MAGIC);
+      out.putInt(4, VERSION);
+      out.putInt(8, rack.R);
+      out.putInt(12, rack.size());
+      out.putLong(16, fingerprint(rack));
+      out.putInt(24, xs);
+      out.putInt(28, ys);
+      out.putInt(32, angles);
+      out.putInt(36, drawbacks);
+      out.putInt(40, spins);
+
+      final BreakTable grid = new BreakTable(out);
+      final List<Shot> shots = new ArrayList<Shot>();
+      for (int a = 0; a < angles; a++) {
+        for (int d = 0; d < drawbacks; d++) {
+          for (int s = 0; s < grid.spinXs.length; s++) shots.add(grid.shot(a, d, grid.spinXs[s], grid.spinYs[s]));
+        }
+      }
+
+      for (int cell = 0; cell < xs * ys; cell++) {
+        final double x = grid.cellX(cell), y = grid.cellY(cell);
+        if (!rack.canPlace(CUE, x, y)) throw new IllegalArgumentException("cue ball does not fit at " + x + ", " + y);
+        rack.setPosition(CUE, x, y);
+        final ShotBatch batch = new ShotBatch(rack);
+        // an older table must not answer for the new one
+        batch.setBreaks(null);
+        final ShotOutcome[] outcomes = batch.evaluate(shots);
+        for (int k = 0; k < outcomes.length; k++) write(out, HEADER + ((long)cell * shots.size() + k) * RECORD, outcomes[k]);
+        System.out.printf("cue at %.0f, %.0f: %d breaks%n", x, y, outcomes.length);
+      }
+      out.force();
+    }
+    return load(file);
+  }
+
+  private static void write(MappedByteBuffer out, long at, ShotOutcome outcome) {
+    int mask = 0;
+    for (int b : outcome.pocketed) mask |= 1 << b;
+    int first = -1;
+    for (int b : outcome.pocketed) {
+      if (b != CUE) { first = b; break; }
+    }
+    final int position = (int)at;
+    out.putShort(position, (short)mask);
+    out.putShort(position + 2, (short)Math.round(outcome.cueX));
+    out.putShort(position + 4, (short)Math.round(outcome.cueY));
+    out.put(position + 6, (byte)(outcome.cueContacts.length > 0 ? outcome.cueContacts[0] : -1));
+    out.put(position + 7, (byte)first);
+    final int time = (int)Math.min(Math.round(outcome.time * 100), TIME_MASK);
+    out.putShort(position + 8, (short)(outcome.end.ordinal() << TIME_BITS | time));
+  }
+
+  // the file mapped read-only, or null if it is missing or not a break table
+  public static BreakTable load(File file) {
+    if (!file.isFile()) return null;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      final MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (raf.length() < HEADER || in.getInt(0) != MAGIC || in.getInt(4) != VERSION) return null;
+      final BreakTable table = new BreakTable(in);
+      if (raf.length() != HEADER + table.size() * RECORD) return null;
+      return table;
+    } catch (IOException e) {
+      System.err.println("Could not read break table " + file + ": " + e);
+      return null;
+    }
+  }
+
+  private static BreakTable shared;
+  private static boolean sharedLoaded = false;
+
+  // the table in poolgame.breaks, or breaks.bin, loaded on first use; may be null
+  public static synchronized BreakTable shared() {
+    if (!sharedLoaded) {
+      shared = load(new File(System.getProperty("poolgame.breaks", defaultFile)));
+      sharedLoaded = true;
+    }
+    return shared;
+  }
+
+  private BreakTable(MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    R = buffer.getInt(8);
+    balls = buffer.getInt(12);
+    rack = buffer.getLong(16);
+    xs = buffer.getInt(24);
+    ys = buffer.getInt(28);
+    angles = buffer.getInt(32);
+    drawbacks = buffer.getInt(36);
+    spins = buffer.getInt(40);
+
+    spinXs = new int[spinCount(spins)]; spinYs = new int[spinXs.length];
+    int k = 0;
+    for (int sx = 0; sx < spins; sx++) {
+      for (int sy = 0; sy < spins; sy++) {
+        if (!isPlayable(spins, sx, sy)) continue;
+        spinXs[k] = sx; spinYs[k] = sy; k++;
+      }
+    }
+  }
+
+  public long size() {
+    return (long)xs * ys * angles * drawbacks * spinXs.length;
+  }
+
+  // the spin at these grid indices is on the dial
+  private static boolean isPlayable(int spins, int sx, int sy) {
+    final double spinX = spin(spins, sx), spinY = spin(spins, sy);
+    return spinX * spinX + spinY * spinY <= 1 + 1e-9;
+  }
+
+  private static int spinCount(int spins) {
+    int n = 0;
+    for (int sx = 0; sx < spins; sx++) {
+      for (int sy = 0; sy < spins; sy++) {
+        if (isPlayable(spins, sx, sy)) n++;
+      }
+    }
+    return n;
+  }
+
+  /*
+   * The cue spot t is a break from, or -1 if t is not an untouched rack
+   * with the cue ball resting on one of the grid's spots.
+   */
+  public int cell(TableSimulation t) {
+    if (t.R != R || t.size() != balls || t.vx[CUE] != 0 || t.vy[CUE] != 0) return -1;
+    if (fingerprint(t) != rack) return -1;
+    final int xi = nearest(t.x[CUE], minX, maxX, xs), yi = nearest(t.y[CUE], minY, maxY, ys);
+    final int cell = xi * ys + yi;
+    if (Math.abs(t.x[CUE] - cellX(cell)) > 0.5 || Math.abs(t.y[CUE] - cellY(cell)) > 0.5) return -1;
+    return cell;
+  }
+
+  // what the shot does from the cue spot, or null if it is not on the grid
+  public ShotOutcome outcome(int cell, Shot shot) {
+    final int a = angleIndex(shot), d = drawbackIndex(shot), s = spinSlot(shot.spinX, shot.spinY);
+    final Shot grid = shot(a, d, spinXs[s], spinYs[s]);
+    if (Math.abs(grid.stickDX - shot.stickDX) > 1e-9 || Math.abs(grid.stickDY - shot.stickDY) > 1e-9
+      || Math.abs(grid.drawback - shot.drawback) > 1e-9 || Math.abs(grid.spinX - shot.spinX) > 1e-9
+      || Math.abs(grid.spinY - shot.spinY) > 1e-9) return null;
+    return read(cell, a, d, s);
+  }
+
+  // what the grid shot closest to this one does from the cue spot
+  public ShotOutcome nearestOutcome(int cell, Shot shot) {
+    return read(cell, angleIndex(shot), drawbackIndex(shot), spinSlot(shot.spinX, shot.spinY));
+  }
+
+  /*
+   * The break from the cue spot that the search scores highest, first on
+   * the grid on ties; null if none scores above zero.
+   */
+  public Shot best(int cell, ShotSearch judge) {
+    Shot best = null; int bestScore = 0;
+    for (int a = 0; a < angles; a++) {
+      for (int d = 0; d < drawbacks; d++) {
+        for (int s = 0; s < spinXs.length; s++) {
+          final int score = judge.score(read(cell, a, d, s));
+          if (score > bestScore) { best = shot(a, d, spinXs[s], spinYs[s]); bestScore = score; }
+        }
+      }
+    }
+    return best;
+  }
+
+  public Shot shot(int a, int d, int sx, int sy) {
+    final double angle = 2 * Math.PI * a / angles;
+    return new Shot(Math.sin(angle), Math.cos(angle), spin(spins, sx), spin(spins, sy), Shot.maxDrawback * (d + 1) / drawbacks);
+  }
+
+  public double cellX(int cell) {
+    return step(cell / ys, minX, maxX, xs);
+  }
+
+  public double cellY(int cell) {
+    return step(cell % ys, minY, maxY, ys);
+  }
+
+  private ShotOutcome read(int cell, int a, int d, int s) {
+    final long index = (((long)cell * angles + a) * drawbacks + d) * spinXs.length + s;
+    final int at = (int)(HEADER + index * RECORD);
+    final int mask = buffer.getShort(at) & 0xffff;
+    final int first = buffer.get(at + 7);
+
+    final int[] pocketed = new int[Integer.bitCount(mask)];
+    int k = 0;
+    if (first >= 0) pocketed[k++] = first;
+    for (int b = 0; b < 16; b++) {
+      if ((mask & (1 << b)) != 0 && b != first) pocketed[k++] = b;
+    }
+    final int contact = buffer.get(at + 6);
+    final int time = buffer.getShort(at + 8) & 0xffff;
+    return new ShotOutcome(pocketed, contact >= 0 ? new int[] {contact} : new int[0],
+      buffer.getShort(at + 2), buffer.getShort(at + 4), ShotOutcome.End.values()[time >>> TIME_BITS], (time & TIME_MASK) / 100.0);
+  }
+
+  private int angleIndex(Shot shot) {
+    final double angle = Math.atan2(shot.stickDX, shot.stickDY);
+    return (int)Math.floorMod(Math.round(angle / (2 * Math.PI) * angles), (long)angles);
+  }
+
+  private int drawbackIndex(Shot shot) {
+    return (int)TableSimulation.clamp(Math.round(shot.drawback / Shot.maxDrawback * drawbacks) - 1, 0, drawbacks - 1);
+  }
+
+  private static double spin(int spins, int s) {
+    return spins == 1 ? 0 : 2.0 * s / (spins - 1) - 1;
+  }
+
+  // the record of the playable grid spin closest to this one
+  private int spinSlot(double spinX, double spinY) {
+    int best = 0; double bestDist = Double.POSITIVE_INFINITY;
+    for (int s = 0; s < spinXs.length; s++) {
+      final double ex = spin(spins, spinXs[s]) - spinX, ey = spin(spins, spinYs[s]) - spinY;
+      final double dist = ex * ex + ey * ey;
+      if (dist < bestDist) { best = s; bestDist = dist; }
+    }
+    return best;
+  }
+
+  private static double step(int i, double min, double max, int n) {
+    return n == 1 ? min : min + (max - min) * i / (n - 1);
+  }
+
+  private static int nearest(double v, double min, double max, int n) {
+    if (n == 1) return 0;
+    return (int)TableSimulation.clamp(Math.round((v - min) / (max - min) * (n - 1)), 0, n - 1);
+  }
+
+  // the rounded rack, cue ball left out, so a table made for another rack is refused
+  private static long fingerprint(TableSimulation t) {
+    final long[] key = OutcomeCache.tableKey(t);
+    long h = 1125899906842597L;
+    for (int k = 0; k < key.length; k++) {
+      // skip the cue ball's slot, position and velocity
+      if (k >= 1 && k <= 5 && key[1] == CUE) continue;
+      h = 31 * h + key[k];
+    }
+    return h;
+  }
+}
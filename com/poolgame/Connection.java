@@ -1,23 +1,44 @@
 package com.poolgame;
 
-import java.awt.Color;
 import java.awt.geom.Point2D;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Scanner;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
+/*
+ * Packets go over the socket in binary. Each is framed as
+ *
+ *   int length | byte version | byte type | payload
+ *
+ * where length counts everything after itself. A MESSAGE, JOIN, QUIT or
+ * ERROR payload is one writeUTF string, a SHOT is five doubles (stick x, y,
+ * spin x, y, drawback), and a GAME is
+ *
+ *   byte gamestate | byte flags | short R | short balls | ball records
+ *
+ * with a fixed 67 byte record per ball: short number, byte flags (striped,
+ * scored), then x, y, vx, vy, spinX, spinY, rotX, rotY as doubles. Ball
+ * colours follow from the number, so are not sent. A peer speaking another
+ * version is dropped rather than misread.
+ */
 public class Connection {
   private static final int PORT = 4004;
+  public static final int VERSION = 1;
+  // larger than any table the game makes; anything bigger is garbage
+  private static final int MAX_PACKET = 1 << 20;
+  public static final int BALL_RECORD = 2 + 1 + 8 * 8;
 
   private final PoolGame game;
-  protected PrintWriter outputWriter;
+  protected DataOutputStream output;
   
   public Connection(PoolGame game) {
     this.game = game;
@@ -40,6 +61,10 @@ public class Connection {
       this.message = message;
       stick = null; spin = null; drawback = 0; state = null;
     }
+    Packet(Type type, String message) {
+      this(message);
+      this.type = type;
+    }
     public Packet(Point2D.Double stick, Point2D.Double spin, double drawback) {
       type = Type.SHOT;
       message = null; state = null;
@@ -50,63 +75,159 @@ public class Connection {
       this.state = state;
       message = null; stick = null; spin = null; drawback = 0;
     }
+    // the packet as framed on the wire, length first
+    public byte[] toBytes() {
+      final ByteBuffer buf = ByteBuffer.allocate(4 + 2 + payloadSize());
+      buf.putInt(buf.capacity() - 4);
+      buf.put((byte)VERSION);
+      buf.put((byte)type.ordinal());
+      if (type == Type.SHOT) {
+        buf.putDouble(stick.x).putDouble(stick.y);
+        buf.putDouble(spin.x).putDouble(spin.y);
+        buf.putDouble(drawback);
+      } else if (type == Type.GAME) {
+        putState(buf);
+      } else {
+        putUTF(buf, message);
+      }
+      return buf.array();
+    }
+    private int payloadSize() {
+      if (type == Type.SHOT) return 5 * 8;
+      if (type == Type.GAME) return 1 + 1 + 2 + 2 + state._table.size() * BALL_RECORD;
+      return 2 + utfLength(message);
+    }
+    private void putState(ByteBuffer buf) {
+      final TableSimulation t = state._table;
+      buf.put((byte)state._gamestate.ordinal());
+      buf.put((byte)((state._canMoveCue ? 1 : 0) | (state._turn ? 2 : 0)
+        | (state._turn0IsSolid != null ? 4 : 0) | (Boolean.TRUE.equals(state._turn0IsSolid) ? 8 : 0)));
+      buf.putShort((short)t.R);
+      buf.putShort((short)t.size());
+      for (int i = 0; i < t.size(); i++) {
+        buf.putShort((short)t.number(i));
+        buf.put((byte)((t.isStriped(i) ? 1 : 0) | (t.isScored(i) ? 2 : 0)));
+        buf.putDouble(t.x[i]).putDouble(t.y[i]);
+        buf.putDouble(t.vx[i]).putDouble(t.vy[i]);
+        buf.putDouble(t.spinX[i]).putDouble(t.spinY[i]);
+        buf.putDouble(t.rotX[i]).putDouble(t.rotY[i]);
+      }
+    }
+    // short enough to log; the table is summed up, not listed
     public String toString() {
-      if (type == Type.SHOT) return type.ordinal()+";"+stick.x+";"+stick.y+";"+spin.x+";"+spin.y+";"+drawback;
-      if (type == Type.GAME) return type.ordinal()+";"+stateToString();
-      return type.ordinal()+";"+message;
-    }
-    public String stateToString() {
-      if (state == null) return null;
-      StringBuilder sb = new StringBuilder();
-      sb.append(state._gamestate.ordinal() + ";");
-      sb.append(state._canMoveCue + ";");
-      sb.append(state._turn + ";");
-      sb.append(state._turn0IsSolid + ";");
-      for (PoolGame.Ball b : state._balls) {
-        sb.append(b.color.getRGB()+","+b.isStriped+","+b.number+","+b.x+","+b.y+","+b.vx+","+b.vy+","+b.spinX+","+b.spinY+","+b.rotX+","+b.rotY+","+b.scored+"|");
+      if (type == Type.SHOT) return String.format("SHOT[stick %.3f, %.3f spin %.2f, %.2f d%.1f]", stick.x, stick.y, spin.x, spin.y, drawback);
+      if (type == Type.GAME) return "GAME[" + state._gamestate + ", " + state._table.size() + " balls]";
+      return type + "[" + message + "]";
+    }
+  }
+
+  // modified UTF-8, as DataOutputStream.writeUTF writes it
+  private static int utfLength(String s) {
+    int n = 0;
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      n += c >= 1 && c <= 0x7f ? 1 : c <= 0x7ff ? 2 : 3;
+    }
+    return n;
+  }
+
+  private static void putUTF(ByteBuffer buf, String s) {
+    final int length = utfLength(s);
+    if (length > 0xffff) throw new IllegalArgumentException("Message too long: " + length + " bytes");
+    buf.putShort((short)length);
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c >= 1 && c <= 0x7f) {
+        buf.put((byte)c);
+      } else if (c <= 0x7ff) {
+        buf.put((byte)(0xc0 | c >> 6));
+        buf.put((byte)(0x80 | c & 0x3f));
+      } else {
+        buf.put((byte)(0xe0 | c >> 12));
+        buf.put((byte)(0x80 | c >> 6 & 0x3f));
+        buf.put((byte)(0x80 | c & 0x3f));
       }
-      return sb.toString();
     }
   }
 
-  Packet parsePacket(String line) {
-    String[] args = line.split(";");
-    if (args[0].equals("0")) return new Packet(line.substring(2));
-    if (args[0].equals("2")) return new Packet(game.new Savestate(
-      PoolGame.Gamestate.values()[Integer.parseInt(args[1])],
-      Boolean.parseBoolean(args[2]),
-      Boolean.parseBoolean(args[3]),
-      args[4].equals("null") ? null : Boolean.parseBoolean(args[4]),
-      parseBalls(args[5])
-    ).invert());
-    return new Packet(
-      new Point2D.Double(Double.parseDouble(args[1]), Double.parseDouble(args[2])),
-      new Point2D.Double(Double.parseDouble(args[3]), Double.parseDouble(args[4])),
-      Double.parseDouble(args[5])
-    );
+  public synchronized void send(Packet packet) {
+    if (output == null) return;
+    try {
+      output.write(packet.toBytes());
+      output.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // the next packet, or null once the other side has closed the connection
+  Packet readPacket(DataInputStream in) throws IOException {
+    final int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    if (length < 2 || length > MAX_PACKET) throw new IOException("Bad packet length " + length);
+    final byte[] body = new byte[length];
+    in.readFully(body);
+    return decode(ByteBuffer.wrap(body));
+  }
+
+  // one framed packet's body, from the version byte on
+  Packet decode(ByteBuffer buf) throws IOException {
+    final int version = buf.get() & 0xff;
+    if (version != VERSION) throw new IOException("Unsupported protocol version " + version + ", expected " + VERSION);
+    final int type = buf.get() & 0xff;
+    if (type >= Packet.Type.values().length) throw new IOException("Unknown packet type " + type);
+
+    try {
+      switch (Packet.Type.values()[type]) {
+        case SHOT:
+          return new Packet(
+            new Point2D.Double(buf.getDouble(), buf.getDouble()),
+            new Point2D.Double(buf.getDouble(), buf.getDouble()),
+            buf.getDouble()
+          );
+        case GAME:
+          return new Packet(decodeState(buf).invert());
+        default:
+          final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()));
+          return new Packet(Packet.Type.values()[type], in.readUTF());
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated " + Packet.Type.values()[type] + " packet");
+    }
   }
 
-  ArrayList<PoolGame.Ball> parseBalls(String line) {
-    String[] args = line.split("\\|");
-    ArrayList<PoolGame.Ball> balls = new ArrayList<PoolGame.Ball>();
-    for (String s : args) {
-      String[] bArgs = s.split(",");
-      balls.add(game.new Ball(
-        new Color(Integer.parseInt(bArgs[0])),
-        Boolean.parseBoolean(bArgs[1]),
-        Integer.parseInt(bArgs[2]),
-        Double.parseDouble(bArgs[3]),
-        Double.parseDouble(bArgs[4]),
-        Double.parseDouble(bArgs[5]),
-        Double.parseDouble(bArgs[6]),
-        Double.parseDouble(bArgs[7]),
-        Double.parseDouble(bArgs[8]),
-        Double.parseDouble(bArgs[9]),
-        Double.parseDouble(bArgs[10]),
-        Boolean.parseBoolean(bArgs[11])
-      ));
-    }
-    return balls;
+  private PoolGame.Savestate decodeState(ByteBuffer buf) throws IOException {
+    final int gamestate = buf.get() & 0xff;
+    if (gamestate >= PoolGame.Gamestate.values().length) throw new IOException("Unknown gamestate " + gamestate);
+    final int flags = buf.get();
+    final int R = buf.getShort(), n = buf.getShort();
+    if (R <= 0 || n < 0 || buf.remaining() < n * BALL_RECORD) throw new IOException("Bad table: R " + R + ", " + n + " balls");
+
+    final TableSimulation table = new TableSimulation(n, R);
+    for (int b = 0; b < n; b++) {
+      final int number = buf.getShort();
+      final int ballFlags = buf.get();
+      final int i = table.add(number, (ballFlags & 1) != 0, buf.getDouble(), buf.getDouble());
+      table.vx[i] = buf.getDouble();
+      table.vy[i] = buf.getDouble();
+      table.spinX[i] = buf.getDouble();
+      table.spinY[i] = buf.getDouble();
+      table.rotX[i] = buf.getDouble();
+      table.rotY[i] = buf.getDouble();
+      table.setScored(i, (ballFlags & 2) != 0);
+      if (table.isMoving(i)) table.wake(i);
+    }
+    return game.new Savestate(
+      PoolGame.Gamestate.values()[gamestate],
+      (flags & 1) != 0,
+      (flags & 2) != 0,
+      (flags & 4) != 0 ? Boolean.valueOf((flags & 8) != 0) : null,
+      table
+    );
   }
 
   public void createNewServer() {
@@ -114,32 +235,26 @@ public class Connection {
       System.out.println("Server is running on " + serverSocket.toString() + ":" + serverSocket.getLocalPort());
       Socket connectionSocket = serverSocket.accept();
 
-      // Create InputStream to read from the client
-      InputStream inputToServer = connectionSocket.getInputStream();
-      Scanner inputScanner = new Scanner(inputToServer, "UTF-8");
-
-      // Create OutputStream to send messages to client
-      OutputStream outputFromServer = connectionSocket.getOutputStream();
-      outputWriter = new PrintWriter(new OutputStreamWriter(outputFromServer, "UTF-8"), true);
+      DataInputStream input = new DataInputStream(new BufferedInputStream(connectionSocket.getInputStream()));
+      output = new DataOutputStream(new BufferedOutputStream(connectionSocket.getOutputStream()));
 
-      outputWriter.println(new Packet("Connection found!"));
+      send(new Packet("Connection found!"));
 
       // Set game opponent to multiplayer
       game.AI = game.new Multiplayer();
 
       // Send game information
-      outputWriter.println(new Packet(game.new Savestate()));
+      send(new Packet(game.new Savestate()));
 
-      while (inputScanner.hasNextLine()) {
-        String line = inputScanner.nextLine();
-        Packet packet = parsePacket(line);
+      Packet packet;
+      while ((packet = readPacket(input)) != null) {
         System.out.println("> Recieved packet: " + packet);
         if (packet.type == Packet.Type.SHOT) {
           game.AI.setShot(packet.stick, packet.spin, packet.drawback);
         }
       }
 
-      inputScanner.close();
+      input.close();
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -152,17 +267,11 @@ public class Connection {
       // Set game opponent to multiplayer
       game.AI = game.new Multiplayer();
 
-      // Create InputStream to read from the client
-      InputStream inputToServer = serverSocket.getInputStream();
-      Scanner inputScanner = new Scanner(inputToServer, "UTF-8");
+      DataInputStream input = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+      output = new DataOutputStream(new BufferedOutputStream(serverSocket.getOutputStream()));
 
-      // Create OutputStream to send messages to client
-      OutputStream outputFromServer = serverSocket.getOutputStream();
-      outputWriter = new PrintWriter(new OutputStreamWriter(outputFromServer, "UTF-8"), true);
-  
-      while (inputScanner.hasNextLine()) {
-      String line = inputScanner.nextLine();
-        Packet packet = parsePacket(line);
+      Packet packet;
+      while ((packet = readPacket(input)) != null) {
         System.out.println("> Recieved packet: " + packet);
         if (packet.type == Packet.Type.SHOT) {
           game.AI.setShot(packet.stick, packet.spin, packet.drawback);
@@ -173,7 +282,7 @@ public class Connection {
         }
       }
 
-      inputScanner.close();
+      input.close();
     } catch (IOException e) {
       e.printStackTrace();
     }
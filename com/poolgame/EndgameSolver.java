@@ -0,0 +1,211 @@
+package com.poolgame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/*
+ * Looks for a run-out once only a few of the player's balls are left: plays
+ * out sequences of pots, one after another on the table each leaves behind,
+ * to see which first shot clears the most, ideally through the 8-ball.
+ *
+ * Only the easiest few ghost-ball pots are tried at each position. Deepening
+ * goes one shot further each round, so when the time runs out the best first
+ * shot of the last finished round is ready. Positions seen before come out of
+ * a bounded memo keyed on the rounded table, which also puts the best known
+ * shot first on the next, deeper round.
+ */
+public class EndgameSolver extends ShotSearch {
+  // our balls on the table, not counting the 8, at which the solver takes over
+  public static final int maxBalls = 3;
+
+  public int branching = 6;
+  public int memoCapacity = 1 << 16;
+
+  private static final double WON = 100;
+
+  private final int maxDepth;
+  private final ThreadLocal<TableSimulation[]> levels = new ThreadLocal<TableSimulation[]>() {
+    protected TableSimulation[] initialValue() {
+      final TableSimulation[] tables = new TableSimulation[maxDepth + 1];
+      for (int k = 0; k < tables.length; k++) tables[k] = new TableSimulation(table.capacity(), table.R);
+      return tables;
+    }
+  };
+
+  private final LinkedHashMap<Key, Entry> memo;
+  private long memoHits = 0;
+
+  private Shot solved = null, easiest = null;
+  private double solvedValue = 0;
+  private int depth = 0;
+
+  private static class Key {
+    private final long[] table;
+    private final int hash;
+
+    Key(long[] table) {
+      this.table = table;
+      hash = Arrays.hashCode(table);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof Key && hash == ((Key)o).hash && Arrays.equals(table, ((Key)o).table);
+    }
+  }
+
+  private static class Entry {
+    final int depth, best;
+    final double value;
+
+    // best is the place of the best shot in the position's candidates, or -1
+    // if it had none
+    Entry(int depth, double value, int best) {
+      this.depth = depth; this.value = value; this.best = best;
+    }
+  }
+
+  public EndgameSolver(TableSimulation table, boolean turn, Boolean turn0IsSolid) {
+    super(table, turn, turn0IsSolid);
+    maxDepth = ballsLeft(this.table, turn0IsSolid) + 1;
+    memo = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        return size() > memoCapacity;
+      }
+    };
+  }
+
+  // true once the player's group is down to maxBalls or fewer
+  public static boolean applies(TableSimulation t, Boolean turn0IsSolid) {
+    return turn0IsSolid != null && ballsLeft(t, turn0IsSolid) <= maxBalls;
+  }
+
+  public Shot findShot() {
+    if (!applies(table, turn0IsSolid)) return super.findShot();
+    final List<ShotGeometry.Candidate> roots = candidates(table, geometry);
+    if (roots.isEmpty()) return super.findShot();
+    synchronized (this) {
+      easiest = roots.get(0).shot;
+    }
+
+    for (int d = 1; d <= maxDepth; d++) {
+      final int depth = d;
+      final List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+      for (final ShotGeometry.Candidate c : roots) {
+        tasks.add(new Callable<Double>() {
+          public Double call() {
+            return value(table, tableKey, c.shot, 0, depth);
+          }
+        });
+      }
+      final List<Double> values = invokeAll(tasks);
+
+      Shot best = null; double bestValue = Double.NEGATIVE_INFINITY; boolean finished = true;
+      for (int k = 0; k < roots.size(); k++) {
+        final Double value = values.get(k);
+        if (value == null) finished = false;
+        else if (value > bestValue) { best = roots.get(k).shot; bestValue = value; }
+      }
+      // a round cut short only counts if it found a run-out
+      if (finished || bestValue >= WON) {
+        synchronized (this) {
+          solved = best; solvedValue = bestValue; this.depth = depth;
+        }
+      }
+      if (!finished || bestValue >= WON) break;
+    }
+    return getBest();
+  }
+
+  public synchronized Shot getBest() {
+    return solved != null ? solved : easiest;
+  }
+
+  // shots deep of the last round finished
+  public synchronized int getDepth() {
+    return depth;
+  }
+
+  public synchronized double getValue() {
+    return solvedValue;
+  }
+
+  public synchronized String memoStats() {
+    return memo.size() + "/" + memoCapacity + " positions, " + memoHits + " hits";
+  }
+
+  /*
+   * Plays the shot from the table at level, then the best line after it
+   * for depth - 1 more shots. Counts +1 for each of ours down and -1 for
+   * each of theirs, and WON for a clean 8-ball. Null if stopped.
+   */
+  private Double value(TableSimulation from, long[] fromKey, Shot shot, int level, int depth) {
+    final TableSimulation t = levels.get()[level + 1];
+    final boolean onEight = ballsLeft(from, turn0IsSolid) == 0;
+    final ShotOutcome outcome = playFrom(from, fromKey, shot, t);
+    if (outcome == null) return null;
+
+    int score = 0;
+    for (int b : outcome.pocketed) {
+      if (b == CUE) continue;
+      if (t.number(b) == 8) return onEight && !outcome.isScratch() ? WON : (double)LOST;
+      score += isOurs(b) ? 1 : -1;
+    }
+    if (outcome.isScratch()) return score - 1.0;
+    if (score <= 0 || depth == 1) return (double)score;
+
+    final Double rest = search(t, level + 1, depth - 1);
+    return rest == null ? null : score + rest;
+  }
+
+  // best value of a line depth shots long from the table at level
+  private Double search(TableSimulation t, int level, int depth) {
+    final long[] position = OutcomeCache.tableKey(t);
+    final Key key = new Key(position);
+    Entry entry;
+    synchronized (this) {
+      entry = memo.get(key);
+      if (entry != null && entry.depth >= depth) { memoHits++; return entry.value; }
+    }
+
+    final List<ShotGeometry.Candidate> candidates = candidates(t, new ShotGeometry(t));
+    // last round's best goes first
+    final int moved = entry != null && entry.best < candidates.size() ? entry.best : 0;
+    if (moved > 0) candidates.add(0, candidates.remove(moved));
+
+    // with nothing to pot the turn just ends
+    int best = -1; double bestValue = candidates.isEmpty() ? 0 : Double.NEGATIVE_INFINITY;
+    for (int k = 0; k < candidates.size(); k++) {
+      final Double value = value(t, position, candidates.get(k).shot, level, depth);
+      if (value == null) return null;
+      if (value > bestValue) { best = k == 0 ? moved : (k <= moved ? k - 1 : k); bestValue = value; }
+      if (bestValue >= WON) break;
+    }
+    synchronized (this) {
+      memo.put(key, new Entry(depth, bestValue, best));
+    }
+    return bestValue;
+  }
+
+  // the easiest few pots on our balls, or on the 8-ball once they are gone
+  private List<ShotGeometry.Candidate> candidates(TableSimulation t, ShotGeometry g) {
+    final List<ShotGeometry.Candidate> candidates = new ArrayList<ShotGeometry.Candidate>();
+    if (ballsLeft(t, turn0IsSolid) == 0) {
+      final int eight = eightSlot(t);
+      if (eight != -1) g.addCandidates(eight, candidates);
+    } else {
+      for (int b = 1; b < t.size(); b++) {
+        if (!t.isScored(b) && t.number(b) != 8 && isOurs(b)) g.addCandidates(b, candidates);
+      }
+    }
+    ShotGeometry.sort(candidates);
+    return candidates.size() > branching ? new ArrayList<ShotGeometry.Candidate>(candidates.subList(0, branching)) : candidates;
+  }
+}
@@ -0,0 +1,81 @@
+package com.poolgame;
+
+import java.util.Arrays;
+
+/*
+ * Indexed binary min-heap of balls keyed by the time of their next
+ * predicted contact. Each ball is in the queue at most once and its key can
+ * be changed in place.
+ */
+class EventQueue {
+  private final int[] heap, pos;
+  private final double[] key;
+  private int size = 0;
+
+  EventQueue(int capacity) {
+    heap = new int[capacity];
+    pos = new int[capacity];
+    key = new double[capacity];
+    Arrays.fill(pos, -1);
+  }
+
+  void clear() {
+    for (int k = 0; k < size; k++) pos[heap[k]] = -1;
+    size = 0;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int peek() {
+    return heap[0];
+  }
+
+  void set(int i, double k) {
+    if (pos[i] == -1) {
+      heap[size] = i; pos[i] = size; key[i] = k;
+      up(size++);
+    } else {
+      final double old = key[i];
+      key[i] = k;
+      if (k < old) up(pos[i]);
+      else down(pos[i]);
+    }
+  }
+
+  void remove(int i) {
+    final int p = pos[i];
+    if (p == -1) return;
+    pos[i] = -1;
+    if (--size == p) return;
+    final int moved = heap[size];
+    heap[p] = moved; pos[moved] = p;
+    up(p);
+    down(pos[moved]);
+  }
+
+  private void up(int p) {
+    final int i = heap[p];
+    while (p > 0) {
+      final int parent = (p - 1) >>> 1;
+      if (key[heap[parent]] <= key[i]) break;
+      heap[p] = heap[parent]; pos[heap[p]] = p;
+      p = parent;
+    }
+    heap[p] = i; pos[i] = p;
+  }
+
+  private void down(int p) {
+    final int i = heap[p];
+    while (true) {
+      int child = 2 * p + 1;
+      if (child >= size) break;
+      if (child + 1 < size && key[heap[child + 1]] < key[heap[child]]) child++;
+      if (key[heap[child]] >= key[i]) break;
+      heap[p] = heap[child]; pos[heap[p]] = p;
+      p = child;
+    }
+    heap[p] = i; pos[i] = p;
+  }
+}
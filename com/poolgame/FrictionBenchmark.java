@@ -0,0 +1,92 @@
+package com.poolgame;
+
+import java.util.Random;
+
+/*
+ * Compares the per-ball settle work (spin, rotation wrap, friction, stop
+ * clamp) as it used to be written, with Math.pow and double %, against the
+ * cached decay factors in TableSimulation, and times whole rack breaks.
+ *
+ *   java -cp bin com.poolgame.FrictionBenchmark [rounds]
+ */
+public class FrictionBenchmark {
+  private static final int BALLS = 16, TICKS = 100000;
+  private static final double DT = 0.02;
+
+  public static void main(String[] args) {
+    final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+    final TableSimulation table = new TableSimulation(BALLS);
+    final Random random = new Random(1);
+    for (int i = 0; i < BALLS; i++) table.add(i == 0 ? -1 : i, i > 8, 0, 0);
+
+    System.out.println("round\tpow ns/ball\tcached ns/ball\tbreak ms");
+    for (int round = 1; round <= rounds; round++) {
+      reset(table, random);
+      long start = System.nanoTime();
+      for (int t = 0; t < TICKS; t++) {
+        for (int i = 0; i < BALLS; i++) legacySettle(table, i, DT);
+        if (t % 100 == 99) reset(table, random);
+      }
+      final double legacy = (System.nanoTime() - start) / (double)TICKS / BALLS;
+
+      reset(table, random);
+      start = System.nanoTime();
+      for (int t = 0; t < TICKS; t++) {
+        for (int i = 0; i < BALLS; i++) settle(table, i, DT);
+        if (t % 100 == 99) reset(table, random);
+      }
+      final double cached = (System.nanoTime() - start) / (double)TICKS / BALLS;
+
+      start = System.nanoTime();
+      for (int b = 0; b < 100; b++) breakRack();
+      final double breaks = (System.nanoTime() - start) / 1e6 / 100;
+
+      System.out.printf("%d\t%.1f\t\t%.1f\t\t%.2f%n", round, legacy, cached, breaks);
+    }
+  }
+
+  private static void reset(TableSimulation table, Random random) {
+    for (int i = 0; i < table.size(); i++) {
+      table.vx[i] = random.nextDouble() * 4000 - 2000;
+      table.vy[i] = random.nextDouble() * 4000 - 2000;
+      table.spinX[i] = random.nextDouble() * 40 - 20;
+      table.spinY[i] = random.nextDouble() * 40 - 20;
+    }
+  }
+
+  // what step() does for each ball once it has moved
+  private static void settle(TableSimulation table, int b, double dt) {
+    table.settle(b, dt);
+    table.fixVelocities(b);
+  }
+
+  // the old Ball.update path
+  private static void legacySettle(TableSimulation table, int b, double dt) {
+    final double range = table.R * TableSimulation.spinRange;
+    table.spinX[b] += table.vx[b] * 0.0002;
+    table.spinY[b] += table.vy[b] * 0.0002;
+    table.rotX[b] = legacyOverflow(table.rotX[b] + table.spinX[b], -range, range);
+    table.rotY[b] = legacyOverflow(table.rotY[b] + table.spinY[b], -range, range);
+    table.vx[b] *= Math.pow(TableSimulation.groundFriction, dt);
+    table.vy[b] *= Math.pow(TableSimulation.groundFriction, dt);
+    table.spinX[b] *= Math.pow(TableSimulation.groundFriction/2, dt);
+    table.spinY[b] *= Math.pow(TableSimulation.groundFriction/2, dt);
+    table.fixVelocities(b);
+  }
+
+  private static double legacyOverflow(double d, double min, double max) {
+    final double mod = (d - min) % (max - min);
+    if (mod < 0) return max + mod;
+    return mod + min;
+  }
+
+  private static void breakRack() {
+    final TableSimulation table = new TableSimulation(16);
+    PoolGame.rack(table);
+    table.vx[TableSimulation.CUE] = 300;
+    table.vy[TableSimulation.CUE] = -5000;
+    table.wake(TableSimulation.CUE);
+    while (!table.step(DT));
+  }
+}
@@ -0,0 +1,103 @@
+package com.poolgame;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+
+/*
+ * Images the game draws, read and decoded once and kept for good. An image
+ * is looked for on the classpath first, so it is found inside the jar, and
+ * then as a file relative to the working directory. Once read it is copied
+ * into the screen's pixel format so drawing it is a plain copy. An image
+ * that could not be found is remembered too, so it is not searched for on
+ * every repaint. Safe to use from several threads.
+ */
+public class ImageCache {
+  public static final ImageCache shared = new ImageCache();
+
+  // null values are images that could not be read
+  private final HashMap<String, BufferedImage> images = new HashMap<String, BufferedImage>();
+  private long hits = 0, loads = 0, failures = 0, loadNanos = 0, bytes = 0;
+
+  // the image at pathname, or null if there is none
+  public synchronized BufferedImage get(String pathname) {
+    if (images.containsKey(pathname)) {
+      hits++;
+      return images.get(pathname);
+    }
+
+    final long start = System.nanoTime();
+    BufferedImage image = read(pathname);
+    if (image != null) {
+      image = toCompatible(image);
+      bytes += 4L * image.getWidth() * image.getHeight();
+      loads++;
+    } else {
+      failures++;
+    }
+    loadNanos += System.nanoTime() - start;
+    images.put(pathname, image);
+    return image;
+  }
+
+  public synchronized int size() {
+    return images.size();
+  }
+
+  public synchronized long hits() {
+    return hits;
+  }
+
+  public synchronized long loads() {
+    return loads;
+  }
+
+  public synchronized long failures() {
+    return failures;
+  }
+
+  // time spent reading, decoding and converting, in milliseconds
+  public synchronized double loadMillis() {
+    return loadNanos / 1e6;
+  }
+
+  public synchronized void clear() {
+    images.clear();
+    hits = 0; loads = 0; failures = 0; loadNanos = 0; bytes = 0;
+  }
+
+  public synchronized String toString() {
+    return String.format("%d loaded (%d KB) in %.1f ms, %d missing, %d hits",
+      loads, bytes >> 10, loadMillis(), failures, hits);
+  }
+
+  private static BufferedImage read(String pathname) {
+    try {
+      final URL url = ImageCache.class.getClassLoader().getResource(pathname);
+      if (url != null) return ImageIO.read(url);
+      final File file = new File(pathname);
+      if (file.isFile()) return ImageIO.read(file);
+    } catch (Exception e) {
+      System.err.println("Could not read image " + pathname + ": " + e);
+    }
+    return null;
+  }
+
+  // a copy laid out as the screen's pixels are, or the image as it is when headless
+  private static BufferedImage toCompatible(BufferedImage image) {
+    if (GraphicsEnvironment.isHeadless()) return image;
+    final GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    if (image.getColorModel().equals(gc.getColorModel(image.getTransparency()))) return image;
+
+    final BufferedImage copy = gc.createCompatibleImage(image.getWidth(), image.getHeight(), image.getTransparency());
+    final Graphics2D g = copy.createGraphics();
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return copy;
+  }
+}
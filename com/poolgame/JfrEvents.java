@@ -0,0 +1,108 @@
+package com.poolgame;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Java Flight Recorder events for what the performance HUD shows, so a
+ * recording taken in play lines stutter up with the shot that caused it:
+ *
+ *   java -XX:StartFlightRecording=filename=pool.jfr -cp bin com.poolgame.Main
+ *
+ * Frames, ticks and searches are events with a duration. A shot is one long
+ * event from the strike until everything stops, with the strike's aim and
+ * power. When nothing is recording, each costs about one check.
+ */
+public class JfrEvents {
+  @Name("poolgame.Frame")
+  @Label("Frame")
+  @Category({"Pool Game", "Rendering"})
+  @Description("One repaint of the game")
+  @StackTrace(false)
+  public static class Frame extends Event {
+    @Label("Active Rendering")
+    public boolean active;
+
+    @Label("Repainted Area")
+    @Description("Pixels inside the clip, or the whole panel")
+    public long area;
+  }
+
+  @Name("poolgame.Tick")
+  @Label("Physics Tick")
+  @Category({"Pool Game", "Physics"})
+  @StackTrace(false)
+  public static class Tick extends Event {
+    @Label("Contacts")
+    @Description("Ball and cushion contacts resolved, one sub-step each")
+    public int contacts;
+
+    @Label("Pair Checks")
+    @Description("Ball pairs tested for a contact")
+    public int pairChecks;
+
+    @Label("Awake Balls")
+    public int awake;
+  }
+
+  @Name("poolgame.Shot")
+  @Label("Shot")
+  @Category({"Pool Game", "Physics"})
+  @Description("From the strike until every ball stops")
+  @StackTrace(false)
+  public static class ShotPlayed extends Event {
+    @Label("Angle")
+    @Description("Direction the cue ball was sent, in degrees clockwise from up")
+    public double angle;
+
+    @Label("Drawback")
+    public double drawback;
+
+    @Label("Spin X")
+    public double spinX;
+
+    @Label("Spin Y")
+    public double spinY;
+
+    @Label("Ticks")
+    public int ticks;
+
+    @Label("Balls Potted")
+    public int potted;
+  }
+
+  @Name("poolgame.Search")
+  @Label("AI Search")
+  @Category({"Pool Game", "AI"})
+  @StackTrace(false)
+  public static class Search extends Event {
+    @Label("Search")
+    public String search;
+
+    @Label("Rollouts")
+    public long rollouts;
+  }
+
+  @Name("poolgame.EdtLatency")
+  @Label("EDT Latency")
+  @Category({"Pool Game", "Rendering"})
+  @Description("How long a task posted to the event dispatch thread waited to run")
+  @StackTrace(false)
+  public static class EdtLatency extends Event {
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    public long latency;
+  }
+
+  static void edtLatency(long nanos) {
+    final EdtLatency event = new EdtLatency();
+    if (!event.shouldCommit()) return;
+    event.latency = nanos;
+    event.commit();
+  }
+}
@@ -112,6 +112,18 @@ public class Main {
       sandbox.setText("Sandbox Mode");
       game.add(sandbox);
 
+      JMenu stress = new JMenu("Stress Test");
+      for (int n : new int[] {250, 1000, 2500}) {
+        JMenuItem item = menuItem(n + " Balls", -1, new AbstractAction() {
+          public void actionPerformed(ActionEvent e) {
+            Main.this.game.stressTest(n);
+            sandbox.setSelected(true);
+          }
+        });
+        stress.add(item);
+      }
+      game.add(stress);
+
       JCheckBoxMenuItem useAI = new JCheckBoxMenuItem();
       useAI.setSelected(Main.this.game.isAIOpponent);
       useAI.setAction(new AbstractAction() {
@@ -133,6 +145,26 @@ public class Main {
       });
       floatOnTop.setText("Float on Top");
       window.add(floatOnTop);
+
+      JCheckBoxMenuItem activeRender = new JCheckBoxMenuItem();
+      activeRender.setSelected(Main.this.game.isActiveRendering());
+      activeRender.setAction(new AbstractAction() {
+        public void actionPerformed(ActionEvent e) {
+          Main.this.game.setActiveRendering(activeRender.isSelected());
+        }
+      });
+      activeRender.setText("Active Rendering");
+      window.add(activeRender);
+
+      JCheckBoxMenuItem hud = new JCheckBoxMenuItem();
+      hud.setSelected(Main.this.game.isShowingHud());
+      hud.setAction(new AbstractAction() {
+        public void actionPerformed(ActionEvent e) {
+          Main.this.game.setShowHud(hud.isSelected());
+        }
+      });
+      hud.setText("Performance HUD");
+      window.add(hud);
       menu.add(window);
 
       setJMenuBar(menu);
@@ -0,0 +1,209 @@
+package com.poolgame;
+
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Named measurements the game keeps about itself, for the performance HUD.
+ * A Histogram holds the last few hundred samples of something, such as how
+ * long a frame took, and gives percentiles over them; a Counter only counts,
+ * such as rollouts played, and gives a rate. Both are cheap enough to update
+ * on every frame and tick, and safe from any thread.
+ *
+ * The same things are also sent to Java Flight Recorder; see JfrEvents.
+ */
+public class Metrics {
+  public static final Metrics shared = new Metrics();
+
+  // samples each histogram keeps
+  public static final int window = 512;
+
+  private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+  private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+  // the histogram with this name, made on first use
+  public Histogram histogram(String name) {
+    final Histogram h = histograms.get(name);
+    if (h != null) return h;
+    histograms.putIfAbsent(name, new Histogram(name));
+    return histograms.get(name);
+  }
+
+  public Counter counter(String name) {
+    final Counter c = counters.get(name);
+    if (c != null) return c;
+    counters.putIfAbsent(name, new Counter(name));
+    return counters.get(name);
+  }
+
+  public List<Histogram> histograms() {
+    final List<Histogram> list = new ArrayList<Histogram>(histograms.values());
+    Collections.sort(list);
+    return list;
+  }
+
+  public List<Counter> counters() {
+    final List<Counter> list = new ArrayList<Counter>(counters.values());
+    Collections.sort(list);
+    return list;
+  }
+
+  public static class Histogram implements Comparable<Histogram> {
+    public final String name;
+    private final double[] samples = new double[window];
+    private int next = 0, size = 0;
+    private long count = 0;
+
+    Histogram(String name) {
+      this.name = name;
+    }
+
+    public synchronized void record(double value) {
+      samples[next] = value;
+      next = (next + 1) % window;
+      if (size < window) size++;
+      count++;
+    }
+
+    // every sample ever recorded, not only those still kept
+    public synchronized long count() {
+      return count;
+    }
+
+    // nearest rank over the samples kept, or 0 if there are none
+    public double percentile(double p) {
+      final double[] sorted = sorted();
+      if (sorted.length == 0) return 0;
+      final int rank = (int)Math.ceil(p / 100 * sorted.length);
+      return sorted[Math.max(rank - 1, 0)];
+    }
+
+    public double max() {
+      final double[] sorted = sorted();
+      return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+    }
+
+    public double mean() {
+      final double[] sorted = sorted();
+      double sum = 0;
+      for (double v : sorted) sum += v;
+      return sorted.length == 0 ? 0 : sum / sorted.length;
+    }
+
+    private double[] sorted() {
+      final double[] copy;
+      synchronized (this) {
+        copy = Arrays.copyOf(samples, size);
+      }
+      Arrays.sort(copy);
+      return copy;
+    }
+
+    public synchronized void clear() {
+      next = 0; size = 0; count = 0;
+    }
+
+    public int compareTo(Histogram h) {
+      return name.compareTo(h.name);
+    }
+
+    public String toString() {
+      final double[] sorted = sorted();
+      if (sorted.length == 0) return name + " -";
+      return String.format("%s p50 %.2f p90 %.2f p99 %.2f max %.2f", name,
+        percentile(50), percentile(90), percentile(99), sorted[sorted.length - 1]);
+    }
+  }
+
+  public static class Counter implements Comparable<Counter> {
+    public final String name;
+    private final LongAdder total = new LongAdder();
+    // where the last rate() was measured from
+    private long rateStart = System.nanoTime(), rateTotal = 0;
+    private double rate = 0;
+
+    Counter(String name) {
+      this.name = name;
+    }
+
+    public void add(long n) {
+      total.add(n);
+    }
+
+    public void increment() {
+      total.increment();
+    }
+
+    public long total() {
+      return total.sum();
+    }
+
+    // per second, measured over at least the last half second
+    public synchronized double rate() {
+      final long now = System.nanoTime(), sum = total.sum();
+      if (now - rateStart >= 500000000L) {
+        rate = (sum - rateTotal) * 1e9 / (now - rateStart);
+        rateStart = now; rateTotal = sum;
+      }
+      return rate;
+    }
+
+    public int compareTo(Counter c) {
+      return name.compareTo(c.name);
+    }
+
+    public String toString() {
+      return String.format("%s %d (%.0f/s)", name, total(), rate());
+    }
+  }
+
+  /*
+   * Measures how long work posted to the EDT waits before it runs, by
+   * posting a stamped task every period and timing it. Runs on a daemon
+   * thread until stopEdtProbe().
+   */
+  private static Thread edtProbe = null;
+
+  public static synchronized void startEdtProbe(final long periodMillis) {
+    if (edtProbe != null) return;
+    final Histogram latency = shared.histogram("edt.ms");
+    edtProbe = new Thread(new Runnable() {
+      public void run() {
+        // the interrupt alone can be swallowed if it lands in invokeLater
+        final Thread self = Thread.currentThread();
+        while (isEdtProbe(self)) {
+          final long posted = System.nanoTime();
+          SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+              final long waited = System.nanoTime() - posted;
+              latency.record(waited / 1e6);
+              JfrEvents.edtLatency(waited);
+            }
+          });
+          try {
+            Thread.sleep(periodMillis);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "EDT probe");
+    edtProbe.setDaemon(true);
+    edtProbe.start();
+  }
+
+  private static synchronized boolean isEdtProbe(Thread thread) {
+    return edtProbe == thread;
+  }
+
+  public static synchronized void stopEdtProbe() {
+    if (edtProbe == null) return;
+    edtProbe.interrupt();
+    edtProbe = null;
+  }
+}
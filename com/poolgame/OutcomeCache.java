@@ -0,0 +1,136 @@
+package com.poolgame;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Bounded LRU cache of shot outcomes, shared by the AI searches so a
+ * position that comes round again is not played out again. Keys are the
+ * table with positions and velocities rounded to a small grid, plus the
+ * shot, so positions that differ by less than the rounding share an entry.
+ * Safe to use from several threads.
+ */
+public class OutcomeCache {
+  public static final double positionQuantum = 0.25, velocityQuantum = 0.5;
+  public static final double directionQuantum = 1e-6, spinQuantum = 1e-4, drawbackQuantum = 0.01;
+
+  public static final OutcomeCache shared = new OutcomeCache(16384);
+
+  private final int capacity;
+  private final LinkedHashMap<Key, ShotOutcome> map;
+  private long hits = 0, misses = 0, evictions = 0;
+
+  public OutcomeCache(final int capacity) {
+    this.capacity = capacity;
+    map = new LinkedHashMap<Key, ShotOutcome>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Key, ShotOutcome> eldest) {
+        if (size() <= capacity) return false;
+        evictions++;
+        return true;
+      }
+    };
+  }
+
+  public synchronized ShotOutcome get(Key key) {
+    final ShotOutcome outcome = map.get(key);
+    if (outcome == null) misses++;
+    else hits++;
+    return outcome;
+  }
+
+  public synchronized void put(Key key, ShotOutcome outcome) {
+    map.put(key, outcome);
+  }
+
+  public synchronized int size() {
+    return map.size();
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public synchronized long hits() {
+    return hits;
+  }
+
+  public synchronized long misses() {
+    return misses;
+  }
+
+  public synchronized long evictions() {
+    return evictions;
+  }
+
+  public synchronized double hitRate() {
+    return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+  }
+
+  public synchronized void clear() {
+    map.clear();
+    hits = 0; misses = 0; evictions = 0;
+  }
+
+  public synchronized String toString() {
+    return String.format("%d/%d entries, %d hits, %d misses (%.0f%%), %d evictions",
+      map.size(), capacity, hits, misses, hitRate() * 100, evictions);
+  }
+
+  /*
+   * The rounded state of a table: radius, then slot, position and velocity
+   * of every ball still on it. Worked out once per search and shared by the
+   * keys of all its shots.
+   */
+  public static long[] tableKey(TableSimulation t) {
+    int n = 0;
+    for (int i = 0; i < t.size(); i++) {
+      if (!t.isScored(i)) n++;
+    }
+    final long[] key = new long[1 + 5 * n];
+    key[0] = t.R;
+    int k = 1;
+    for (int i = 0; i < t.size(); i++) {
+      if (t.isScored(i)) continue;
+      key[k++] = i;
+      key[k++] = Math.round(t.x[i] / positionQuantum);
+      key[k++] = Math.round(t.y[i] / positionQuantum);
+      key[k++] = Math.round(t.vx[i] / velocityQuantum);
+      key[k++] = Math.round(t.vy[i] / velocityQuantum);
+    }
+    return key;
+  }
+
+  public static Key key(long[] table, Shot shot) {
+    return new Key(table, shot);
+  }
+
+  public static class Key {
+    private final long[] table;
+    private final long dx, dy, spinX, spinY, drawback;
+    private final int hash;
+
+    private Key(long[] table, Shot shot) {
+      this.table = table;
+      dx = Math.round(shot.stickDX / directionQuantum);
+      dy = Math.round(shot.stickDY / directionQuantum);
+      spinX = Math.round(shot.spinX / spinQuantum);
+      spinY = Math.round(shot.spinY / spinQuantum);
+      drawback = Math.round(shot.drawback / drawbackQuantum);
+      long h = Arrays.hashCode(table);
+      for (long v : new long[] {dx, dy, spinX, spinY, drawback}) h = h * 31 + v;
+      hash = (int)(h ^ (h >>> 32));
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      final Key k = (Key)o;
+      return hash == k.hash && dx == k.dx && dy == k.dy && spinX == k.spinX && spinY == k.spinY
+        && drawback == k.drawback && (table == k.table || Arrays.equals(table, k.table));
+    }
+  }
+}
@@ -1,14 +1,21 @@
 package com.poolgame;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.geom.Ellipse2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
-import java.io.File;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class PoolGame extends JPanel {
   public static final Color BG_COLOR = new Color(24, 24, 25);
@@ -17,16 +24,41 @@ public class PoolGame extends JPanel {
 
   private final Main main;
 
-  private Timer updateTimer;
+  private final SimulationLoop loop;
   protected Timer AITimer;
   private final int updateMS = 20;
-  private boolean shouldStartTimer = false;
+  private boolean shouldStartTimer = false, shouldStartAI = false;
+
+  // runs AI searches so the EDT only has to animate the chosen shot
+  private static final ExecutorService aiExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, "AI");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
 
   protected AI AI;
   protected Connection connection = null;
 
   private final int screenMargin = 80;
 
+  private final Mouse mouse = new Mouse();
+
+  // see Metrics; the HUD shows them when showHud is set
+  private static final Metrics.Histogram frameTimes = Metrics.shared.histogram("frame.ms");
+  private static final Metrics.Histogram tickTimes = Metrics.shared.histogram("tick.ms");
+  private static final Metrics.Histogram tickContacts = Metrics.shared.histogram("tick.contacts");
+  private static final Metrics.Histogram tickPairChecks = Metrics.shared.histogram("tick.pairs");
+  private static final Metrics.Histogram searchTimes = Metrics.shared.histogram("search.ms");
+  private boolean showHud = false;
+  private Timer hudTimer;
+  // the shot being played, for the flight recorder; begun on the EDT, then
+  // only touched by the simulation thread until shotFinished()
+  private JfrEvents.ShotPlayed shotEvent = null;
+  // set while frames are drawn by an ActiveRenderer instead of Swing
+  private volatile ActiveRenderer renderer = null;
+
   private Point2D.Double lastMouse;
 
   enum Gamestate {
@@ -42,70 +74,56 @@ public class PoolGame extends JPanel {
 
   private Gamestate gamestate = Gamestate.cuing;
   private boolean canMoveCue = true, cueMoving = false;
-  private Ball cue;
-  private final int cueMult = 10, cueSpinMult = 50;
   private Point2D.Double cuePoint;
   private double stickDX, stickDY, stickDrawback, cueSpinX, cueSpinY;
-  private final int maxDrawback = 600;
-
-  private ArrayList<Ball> balls;
-  
-  private ArrayList<Ball> player1Balls = new ArrayList<Ball>();
-  private ArrayList<Ball> player2Balls = new ArrayList<Ball>();
-
-  private final double groundFriction = 0.5;
-  private final double bounceFriction = 0.7;
-  private final double collisionFriction = 0.98;
-
-  static class Vector {
-    public double x, y;
+  private final int maxDrawback = Shot.maxDrawback;
 
-    public Vector(double x, double y) {
-      this.x = x; this.y = y;
-    }
+  private static final int CUE = TableSimulation.CUE;
+  private TableSimulation sim = new TableSimulation(16);
+  private volatile long lastStepNanos = 0;
 
-    public Vector proj(Vector onto) {
-      return onto.scale(dot(onto) / (onto.x * onto.x + onto.y * onto.y));
-    }
+  // potted slots handed from the simulation thread to the EDT
+  private final ConcurrentLinkedQueue<Integer> pottedQueue = new ConcurrentLinkedQueue<Integer>();
 
-    public double dot(Vector b) {
-      return x * b.x + y * b.y;
-    }
+  /*
+   * The last two ticks, copied out by the simulation thread and drawn
+   * interpolated while a shot is running. The back frame is only touched by
+   * the simulation thread, and the three are rotated under frameLock.
+   */
+  private final Object frameLock = new Object();
+  private TableSimulation prevFrame, currFrame, backFrame;
+  private long frameNanos;
 
-    public Vector add(Vector b) {
-      return new Vector(x + b.x, y + b.y);
-    }
-
-    public Vector scale(double scalar) {
-      return new Vector(x * scalar, y * scalar);
-    }
-  }
+  // slots of the balls each player has potted, in order
+  private ArrayList<Integer> player1Balls = new ArrayList<Integer>();
+  private ArrayList<Integer> player2Balls = new ArrayList<Integer>();
 
   class Savestate {
     public Gamestate _gamestate;
     public boolean _canMoveCue;
     public boolean _turn;
     public Boolean _turn0IsSolid;
-    public ArrayList<Ball> _balls;
+    public final TableSimulation _table;
 
     public Savestate() {
       _gamestate = gamestate; _canMoveCue = canMoveCue;
-      _balls = cloneList(balls); _turn = turn;
+      _table = new TableSimulation(sim); _turn = turn;
       _turn0IsSolid = turn0IsSolid;
     }
 
-    public Savestate(Gamestate _gamestate, boolean _canMoveCue, boolean _turn, Boolean _turn0IsSolid, ArrayList<Ball> _balls) {
+    public Savestate(Gamestate _gamestate, boolean _canMoveCue, boolean _turn, Boolean _turn0IsSolid, TableSimulation _table) {
       this._gamestate = _gamestate; this._canMoveCue = _canMoveCue;
       this._turn = _turn; this._turn0IsSolid = _turn0IsSolid;
-      this._balls = _balls;
+      this._table = _table;
     }
 
     public void load() {
       gamestate = _gamestate; canMoveCue = _canMoveCue;
-      balls = _balls; turn = _turn;
+      if (_table.R == sim.R && _table.size() <= sim.capacity()) sim.copyFrom(_table);
+      else sim = new TableSimulation(_table);
+      turn = _turn;
       turn0IsSolid = _turn0IsSolid;
-      cue = _balls.get(0);
-      cuePoint = new Point2D.Double(cue.x, cue.y);
+      cuePoint.setLocation(sim.x[CUE], sim.y[CUE]);
     }
 
     public Savestate invert() {
@@ -113,238 +131,17 @@ public class PoolGame extends JPanel {
       if (_turn0IsSolid != null) _turn0IsSolid = !_turn0IsSolid;
       return this;
     }
-
-    private ArrayList<Ball> cloneList(ArrayList<Ball> list) {
-      ArrayList<Ball> clonedList = new ArrayList<Ball>(list.size());
-      for (Ball ball : list) {
-        clonedList.add(new Ball(ball));
-      }
-      return clonedList;
-  }
   }
 
-  class Ball {
-    public static final int defaultR = 40;
-    public int R = defaultR;
-    public final double vThreshold = 10;
-    private final double spinRange = 1.5, spinMult = 30;
-
-    public final Color color;
-    public final boolean isStriped;
-    public final int number;
-    public double x, y, vx, vy, rotX, rotY, spinX, spinY;
-    protected boolean scored;
-
-    public Ball(Color color, boolean isStriped, int number, int initX, int initY) {
-      this.color = color; this.isStriped = isStriped; this.number = number;
-      x = initX; y = initY; scored = false;
-    }
-
-    protected Ball(Color color, boolean isStriped, int number, double x, double y, double vx, double vy, double spinX, double spinY, double rotX, double rotY, boolean scored) {
-      this.color = color; this.isStriped = isStriped; this.number = number;
-      this.x = x; this.y = y; this.vx = vx; this.vy = vy;
-      this.spinX = spinX; this.spinY = spinY; this.rotX = rotX; this.rotY = rotY;
-      this.scored = scored;
-    }
-
-    protected Ball(Ball b) {
-      color = b.color; isStriped = b.isStriped; number = b.number;
-      x = b.x; y = b.y; vx = b.vx; vy = b.vy; rotX = b.rotX; rotY = b.rotY;
-      spinX = b.spinX; spinY = b.spinY; scored = b.scored;
-    }
-
-    public Ball cloneWith(int x, int y) {
-      return new Ball(color, isStriped, number, x, y);
-    }
-
-    protected Ball setR(int R) {
-      this.R = R;
-      return this;
-    }
-
-    public void fixVelocities() {
-      if (Math.abs(vx) < vThreshold) vx = 0;
-      if (Math.abs(vy) < vThreshold) vy = 0;
-    }
-
-    public Ball update(double dt) {
-      if (scored) return null;
-
-      Ball collided = null;
-
-      for (int i = 0; i < Math.max(Math.abs(vx * dt), Math.abs(vy * dt)); i++) {
-        if (i < Math.abs(vx * dt)) {
-          // move x
-          final double dx = clamp(Math.abs(vx * dt) - i) * Math.signum(vx);
-          x += dx;
-          Ball collide = getBallColliding();
-          if (collide != null) {
-            x -= dx;
-            collideWith(collide);
-            collided = collide;
-          } else if (isWallColliding()) {
-            x -= dx;
-            vx *= -bounceFriction;
-            vy *= bounceFriction;
-            addSpin();
-          }
-        }
-        if (i < Math.abs(vy * dt)) {
-          // move y
-          final double dy = clamp(Math.abs(vy * dt) - i) * Math.signum(vy);
-          y += dy;
-          Ball collide = getBallColliding();
-          if (collide != null) {
-            y -= dy;
-            collideWith(collide);
-            collided = collide;
-          } else if (isWallColliding()) {
-            y -= dy;
-            vx *= bounceFriction;
-            vy *= -bounceFriction;
-            addSpin();
-          }
-        }
-      }
-
-      final double vToSpinFactor = 0.0002;
-      spinX += vx * vToSpinFactor;
-      spinY += vy * vToSpinFactor;
-
-      rotX = overflow(rotX + spinX, -R*spinRange, R*spinRange);
-      // final double rotYCap = R*spinRange*Math.cos(this.rotX * (Math.PI/2) / (R * spinRange));
-      rotY = overflow(rotY + spinY, -R*spinRange, R*spinRange);
-
-      applyFriction(dt);
-
-      // Check if scored
-      if (isBorderColliding()) {
-        System.out.println("Scored the " + (number == -1 ? "cue" : number) + "-ball! (" + (isStriped ? "striped" : "solid") + ")");
-        scored = true;
-      }
-
-      return collided;
-    }
-
-    public void addSpin() {
-      final double mag = Math.sqrt(vx * vx + vy * vy);
-      vx += spinX * spinMult;
-      vy += spinY * spinMult;
-      double newMag = Math.sqrt(vx * vx + vy * vy);
-      if (newMag > mag) {
-        vx *= (mag / newMag);
-        vy *= (mag / newMag);
-      }
-      
-      spinX *= bounceFriction;
-      spinY *= bounceFriction;
-    }
-
-    public boolean isBorderColliding() {
-      return Math.abs(x) > 600-R|| Math.abs(y) > 1200-R;
-    }
-
-    public boolean isWallColliding() {
-      return (Math.abs(x) > 600-R-R && Math.abs(y) < 1200-R*2.5 && Math.abs(y) > R) || (Math.abs(y) > 1200-R-R && Math.abs(x) < 600-R*2.5);
-    }
-
-    public Ball getBallColliding() {
-      for (Ball ball : balls) {
-        if (ball == this) continue;
-        if (distanceTo(ball) < 2 * R) return ball;
-      }
-      return null;
-    }
-
-    private void collideWith(Ball b) {
-      // addSpin();
-
-      final Vector normal = new Vector(b.x - x, b.y - y);
-      final Vector tangent = new Vector(normal.y, -normal.x);
-
-      final Vector n = new Vector(vx, vy).proj(normal).scale(collisionFriction);
-      final Vector t = new Vector(vx, vy).proj(tangent);
-      final Vector bn = new Vector(b.vx, b.vy).proj(normal).scale(collisionFriction);
-      final Vector bt = new Vector(b.vx, b.vy).proj(tangent);
-
-      vx = t.x + bn.x;
-      vy = t.y + bn.y;
-
-      b.vx = bt.x + n.x;
-      b.vy = bt.y + n.y;
-    }
-
-    // public Vector getAnchoredVector(Ball b) {
-    //   final double angle = Math.atan2(vy, vx);
-    //   final double angleTo = Math.atan2(b.y - y, b.x - x);
-    //   final double vMag = Point.distance(0, 0, vx, vy);
-    //   // TODO: include b's velocity
-    //   final double tMag = Point.distance(x, y, b.x, b.y);
-    //   final double fMag = Math.cos(angle - angleTo) * Math.pow(vMag, 0.99) / tMag;
-    //   return new Vector((b.x - x) * fMag, (b.y - y) * fMag);
-    // }
-
-    public double distanceTo(Ball b) {
-      return Point.distance(x, y, b.x, b.y);
-    }
-
-    private void applyFriction(double dt) {
-      vx *= Math.pow(groundFriction, dt);
-      vy *= Math.pow(groundFriction, dt);
-      spinX *= Math.pow(groundFriction/2, dt);
-      spinY *= Math.pow(groundFriction/2, dt);
-    }
-
-    public static double clamp(double d) {
-      return d > 1 ? 1 : (d < -1 ? -1 : d);
-    }
-
-    public static double clamp(double d, double min, double max) {
-      return d > max ? max : (d < min ? min : d);
-    }
-
-    public static double overflow(double d, double min, double max) {
-      final double mod = (d - min) % (max - min);
-      if (mod < 0) return max + mod;
-      return mod + min;
-    }
-
-    public void draw(Graphics2D g2) {
-      if (scored) return;
-
-      g2.setColor(shadow);
-      g2.fillOval((int)x-R, (int)y-R-1, 2*R+10, 2*R+10);
-
-      g2.setColor(color);
-      g2.fillOval((int)x-R, (int)y-R, 2*R, 2*R);
-
-      g2.setClip(new Ellipse2D.Double(x-R, y-R, 2*R, 2*R));
-
-      if (isStriped) {
-        g2.setColor(new Color(240, 240, 240));
-        g2.fillRect((int)x-R, (int)y-R, 16, R*2);
-        g2.fillRect((int)x+R-16, (int)y-R, 16, R*2);
-      }
-
-      if (number > 0) {
-        g2.setColor(new Color(240, 240, 240));
-        g2.fillOval((int)(x+rotX-R/2), (int)(y+rotY-R/2), R, R);
-  
-        g2.setColor(Color.BLACK);
-        g2.setFont(getFont().deriveFont((float)R * 25 / 40));
-        final String num = Integer.toString(number);
-        final int width = g2.getFontMetrics().stringWidth(num);
-        g2.drawString(num, (int)(x+rotX-width/2), (int)(y+rotY+12));
-      }
-
-      g2.setColor(number == -1 ? Color.WHITE : shine);
-      g2.fillOval((int)x-R, (int)y-R, 20, 20);
+  public static Color colorOf(int number) {
+    return number > 0 && number < BALL_COLORS.length ? BALL_COLORS[number] : CUE_COLOR;
+  }
 
-      g2.setColor(new Color(255, 255, 255, 48));
-      g2.fillOval((int)x-R-1, (int)y-R-1, 2*R-10, 2*R-10);
+  // balls are drawn from pre-rendered sprites; see BallSprites
+  private final BallSprites sprites = new BallSprites();
 
-      g2.setClip(null);
-    }
+  public void drawBall(Graphics2D g2, int number, boolean isStriped, double x, double y, double rotX, double rotY, int R) {
+    sprites.draw(g2, getFont(), number, isStriped, x, y, rotX, rotY, R);
   }
 
   public PoolGame(Main main, boolean isSandbox, boolean isAIOpponent) {
@@ -358,101 +155,186 @@ public class PoolGame extends JPanel {
 
     initGame();
     
-    final Mouse mouse = new Mouse();
     addMouseListener(mouse);
     addMouseMotionListener(mouse);
 
-    updateTimer = new Timer(updateMS, new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        update();
+    loop = new SimulationLoop(new SimulationLoop.Tick() {
+      public boolean tick(double dt) {
+        return update(dt);
       }
-    });
-    updateTimer.setRepeats(true);
-    // updateTimer.start();
+    }, 1000 / updateMS);
 
-    AI = new AI();
+    AI = new SearchAI();
     AITimer = new Timer(updateMS, new ActionListener() {
       public void actionPerformed(ActionEvent e) {
         AI.update(updateMS / 1000.0);
       }
     });
     AITimer.setRepeats(true);
+
+    // the HUD's numbers change even when nothing else on screen does
+    hudTimer = new Timer(500, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        final ActiveRenderer r = renderer;
+        if (r != null) r.requestFrame();
+        else PoolGame.super.repaint(hudBounds());
+      }
+    });
+    hudTimer.setRepeats(true);
+
+    if (Boolean.getBoolean("poolgame.activeRender") && !GraphicsEnvironment.isHeadless()) setActiveRendering(true);
+    if (Boolean.getBoolean("poolgame.hud")) setShowHud(true);
   }
 
   public void startIfNeeded() {
-    if (shouldStartTimer) updateTimer.start();
+    if (shouldStartTimer) startLoop();
+    if (shouldStartAI) AITimer.start();
   }
 
-  public void update() {
-    // removed scored balls
-    for (int i = balls.size() - 1; i > 0; i--) {
-      if (balls.get(i).scored) {
-        if (turn0IsSolid != null) {
-          if (turn0IsSolid == (turn == balls.get(i).isStriped))
-            hasScored = true;
-        } else {
-          turn0IsSolid = turn == balls.get(i).isStriped;
-          hasScored = true;
-        }
-        if (turn0IsSolid == balls.get(i).isStriped) {
-          player2Balls.add(balls.get(i).cloneWith(
-            760 + (player2Balls.size())/4 * 110,
-            1220 - (player2Balls.size()) % 4 * 110
-          ).setR(Ball.defaultR * 5 / 4));
-        } else {
-          player1Balls.add(balls.get(i).cloneWith(
-            -760 - (player1Balls.size())/4 * 110,
-            1220 - (player1Balls.size()) % 4 * 110
-          ).setR(Ball.defaultR * 5 / 4));
-        }
-        balls.remove(i);
-      }
+  public SimulationLoop getLoop() {
+    return loop;
+  }
+
+  // shots from the table as it stands, for analysis; see ShotBatch
+  public ShotBatch shotBatch() {
+    return new ShotBatch(sim);
+  }
+
+  private void startLoop() {
+    resetFrames();
+    loop.start();
+  }
+
+  /*
+   * One physics tick, run on the simulation thread. Anything that touches
+   * the rules or the UI is passed to the EDT; the loop has stopped by the
+   * time shotFinished() runs there. Returns false once everything stopped.
+   */
+  public boolean update(double dt) {
+    final JfrEvents.Tick event = new JfrEvents.Tick();
+    event.begin();
+    final long start = System.nanoTime();
+    final boolean allStopped = sim.step(dt);
+    lastStepNanos = System.nanoTime() - start;
+    event.end();
+
+    tickTimes.record(lastStepNanos / 1e6);
+    tickContacts.record(sim.getStepContacts());
+    tickPairChecks.record(sim.getStepPairChecks());
+    if (event.shouldCommit()) {
+      event.contacts = sim.getStepContacts();
+      event.pairChecks = sim.getStepPairChecks();
+      event.awake = sim.awakeCount();
+      event.commit();
+    }
+    if (shotEvent != null) {
+      shotEvent.ticks++;
+      shotEvent.potted += sim.pocketedCount();
     }
 
-    boolean allStopped = true;
-    for (Ball ball : balls) {
-      if (ball == cue && cue.scored) continue;
-      ball.update(updateMS / 1000.0);
-      ball.fixVelocities();
-      if (ball.vx != 0 || ball.vy != 0) allStopped = false;
+    for (int k = 0; k < sim.pocketedCount(); k++) pottedQueue.add(sim.pocketed(k));
+    if (sim.pocketedCount() > 0) {
+      sim.clearPocketed();
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          applyPotted();
+        }
+      });
     }
 
+    publishFrame();
     if (allStopped) {
-      // CUE BALL SCRATCHED
-      if (cue.scored) {
-        cue.x = 0;
-        cue.y = 600;
-        cue.scored = false;
-        cuePoint = new Point2D.Double(0, 600);
-        canMoveCue = true;
-        gamestate = Gamestate.cuing;
-        updateTimer.stop();
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          shotFinished();
+        }
+      });
+    }
 
-        turn = !turn; // next turn
-        if (AI != null) AI.stick = null;
-        if (turn && !isSandbox && isAIOpponent) AITimer.start();
+    repaintMoving();
+    return !allStopped;
+  }
 
-        hasScored = false;
-        repaint();
-        return;
+  // move potted balls to the players' racks
+  private void applyPotted() {
+    Integer slot;
+    while ((slot = pottedQueue.poll()) != null) {
+      final int i = slot;
+      if (i == CUE) continue;
+      System.out.println("Scored the " + sim.number(i) + "-ball! (" + (sim.isStriped(i) ? "striped" : "solid") + ")");
+      if (turn0IsSolid != null) {
+        if (turn0IsSolid == (turn == sim.isStriped(i)))
+          hasScored = true;
+      } else {
+        turn0IsSolid = turn == sim.isStriped(i);
+        hasScored = true;
       }
+      if (turn0IsSolid == sim.isStriped(i)) player2Balls.add(i);
+      else player1Balls.add(i);
+    }
+    repaint();
+  }
+
+  private void shotFinished() {
+    if (gamestate != Gamestate.game) return; // reset meanwhile
+    loop.stop(); // waits out the tick that posted this
+    applyPotted();
+    if (shotEvent != null) {
+      shotEvent.commit();
+      shotEvent = null;
+    }
 
-      cuePoint = new Point2D.Double(cue.x, cue.y);
+    // CUE BALL SCRATCHED
+    if (sim.isScored(CUE)) {
+      sim.setPosition(CUE, 0, 600);
+      sim.setScored(CUE, false);
+      cuePoint.setLocation(0, 600);
+      canMoveCue = true;
       gamestate = Gamestate.cuing;
-      updateTimer.stop();
 
-      // game rules
-      if (!isSandbox) {
-        if (!hasScored) turn = !turn; // next turn
-        if (turn && isAIOpponent) AITimer.start();
-      }
+      turn = !turn; // next turn
+      if (AI != null) AI.stick = null;
+      if (turn && !isSandbox && isAIOpponent) AITimer.start();
 
       hasScored = false;
+      repaint();
+      return;
+    }
+
+    cuePoint.setLocation(sim.x[CUE], sim.y[CUE]);
+    gamestate = Gamestate.cuing;
+
+    // game rules
+    if (!isSandbox) {
+      if (!hasScored) turn = !turn; // next turn
+      if (turn && isAIOpponent) AITimer.start();
     }
 
+    hasScored = false;
     repaint();
   }
 
+  private void publishFrame() {
+    if (backFrame == null || backFrame.R != sim.R || backFrame.capacity() < sim.size()) backFrame = new TableSimulation(sim);
+    else backFrame.copyFrom(sim);
+    synchronized (frameLock) {
+      final TableSimulation old = prevFrame;
+      prevFrame = currFrame;
+      currFrame = backFrame;
+      backFrame = old;
+      frameNanos = System.nanoTime();
+    }
+  }
+
+  // both frames start out as the table as it is now
+  private void resetFrames() {
+    synchronized (frameLock) {
+      prevFrame = new TableSimulation(sim);
+      currFrame = new TableSimulation(sim);
+      frameNanos = System.nanoTime();
+    }
+  }
+
   private boolean isUserTurn() {
     return isSandbox || !turn || !isAIOpponent;
   }
@@ -464,11 +346,11 @@ public class PoolGame extends JPanel {
       // final int where = whereClicked(mouse);
       if (gamestate == Gamestate.cuing) {
         lastMouse = mouse;
-        final double dist = mouse.distance(cue.x, cue.y);
-        stickDX = (cue.x - mouse.getX()) / dist;
-        stickDY = (cue.y - mouse.getY()) / dist;
+        final double dist = mouse.distance(sim.x[CUE], sim.y[CUE]);
+        stickDX = (sim.x[CUE] - mouse.getX()) / dist;
+        stickDY = (sim.y[CUE] - mouse.getY()) / dist;
       }
-      repaint();
+      repaintControls();
     }
     public void mouseDragged(MouseEvent e) {
       if (!isUserTurn()) return;
@@ -480,15 +362,12 @@ public class PoolGame extends JPanel {
       } else if (gamestate == Gamestate.spinMenu && where == 1) {
         setCueSpin(mouse);
       } else if (gamestate == Gamestate.cuing && cueMoving) {
-        Point2D.Double cueSave = new Point2D.Double(cue.x, cue.y);
-        cue.x = mouse.x; cue.y = mouse.y;
-        if (cue.getBallColliding() != null || cue.isBorderColliding() || cue.isWallColliding()) {
-          cue.x = cueSave.x; cue.y = cueSave.y;
-        } else {
-          cuePoint = new Point2D.Double(cue.x, cue.y);
+        if (sim.canPlace(CUE, mouse.x, mouse.y)) {
+          sim.setPosition(CUE, mouse.x, mouse.y);
+          cuePoint.setLocation(mouse.x, mouse.y);
         }
       }
-      repaint();
+      repaintControls();
     }
     public void mouseClicked(MouseEvent e) {
       if (!isUserTurn()) return;
@@ -513,17 +392,20 @@ public class PoolGame extends JPanel {
       final Point2D.Double mouse = getMousePoint(e);
       final int where = whereClicked(mouse, e.getPoint());
       if (where == 4) { // HOME MENU
-        shouldStartTimer = updateTimer.isRunning();
-        updateTimer.stop();
+        shouldStartTimer = loop.isRunning();
+        loop.stop();
+        shouldStartAI = AITimer.isRunning();
+        AITimer.stop();
+        AI.cancel();
         main.goToHome();
       }
       if (!isUserTurn()) return;
       lastMouse = mouse;
       if (gamestate == Gamestate.cuing && stickDrawback > 0 && where == 0 && !cueMoving) {
         // player shoots!
-        if (connection != null && connection.outputWriter != null) {
+        if (connection != null && connection.output != null) {
           System.out.println("Sending packet to server!!!");
-          connection.outputWriter.println(new Connection.Packet(
+          connection.send(new Connection.Packet(
             new Point2D.Double(stickDX, stickDY),
             new Point2D.Double(cueSpinX, cueSpinY),
             stickDrawback
@@ -554,7 +436,7 @@ public class PoolGame extends JPanel {
       // cueSpin
       if (mouse.distance(gamestate == Gamestate.spinMenu ? 0 : 840, 0) <= (gamestate == Gamestate.spinMenu ? 200 : 110)) return 1;
       if (mouse.x >= -930 && mouse.x < -770 && mouse.y >= -900 && mouse.y <= -740) return 2;
-      if (canMoveCue && mouse.distance(cue.x, cue.y) <= cue.R + 5) return 3;
+      if (canMoveCue && mouse.distance(sim.x[CUE], sim.y[CUE]) <= sim.R + 5) return 3;
       return 0;
     }
 
@@ -568,17 +450,24 @@ public class PoolGame extends JPanel {
   }
 
   private void release() {
-    cue.vx = -stickDX * stickDrawback * cueMult;
-    cue.vy = -stickDY * stickDrawback * cueMult;
-    final double theta = Math.atan2(cue.vx, -cue.vy);
-    cue.spinX = Math.cos(theta) * cueSpinX + Math.sin(theta) * cueSpinY;
-    cue.spinY = Math.cos(theta) * cueSpinY + Math.sin(theta) * cueSpinX;
-    cue.spinX *= cueSpinMult * ((double)stickDrawback / maxDrawback);
-    cue.spinY *= cueSpinMult * ((double)stickDrawback / maxDrawback);
+    strike();
+    startLoop();
+  }
 
-    if (canMoveCue) canMoveCue = false;
+  // sets the cue ball moving without starting the loop
+  private void strike() {
+    new Shot(stickDX, stickDY, cueSpinX, cueSpinY, stickDrawback).apply(sim);
+
+    final JfrEvents.ShotPlayed event = new JfrEvents.ShotPlayed();
+    if (event.isEnabled()) {
+      event.begin();
+      event.angle = Math.toDegrees(Math.atan2(-stickDX, stickDY));
+      event.drawback = stickDrawback;
+      event.spinX = cueSpinX; event.spinY = cueSpinY;
+      shotEvent = event;
+    }
 
-    updateTimer.start();
+    if (canMoveCue) canMoveCue = false;
 
     gamestate = Gamestate.game;
     stickDrawback = 0; cueSpinX = 0; cueSpinY = 0;
@@ -592,10 +481,29 @@ public class PoolGame extends JPanel {
     public void calculatePoint() {}
   }
 
+  /*
+   * Plays a BeamSearch instead, which also varies spin and thinks a turn
+   * ahead, and looks for a run-out with the EndgameSolver once only a few
+   * of its balls are left. Both use every core the search pool has.
+   */
+  public class SearchAI extends AI {
+    public void calculatePoint() {
+      if (search == null) {
+        think(EndgameSolver.applies(sim, turn0IsSolid)
+          ? new EndgameSolver(sim, turn, turn0IsSolid)
+          : new BeamSearch(sim, turn, turn0IsSolid));
+      }
+      aimAt(search.getBest());
+    }
+  }
+
   public class AI {
     public Point2D.Double stick = null;
     double targetDrawback = 0, sX = 0, sY = 0;
-    Ball eightBall = null;
+
+    // the search in flight, if any, and how long it may take
+    protected ShotSearch search = null;
+    public long searchBudgetMS = 2000;
 
     private static int drawbackSpeed = 400;
     protected void setDrawbackSpeed(int speed) {
@@ -631,188 +539,150 @@ public class PoolGame extends JPanel {
         }
       }
 
-      repaint();
+      repaintControls();
     }
 
+    /*
+     * Searches a snapshot of the table in the background; see ShotSearch.
+     * Called on every AI tick until stick is set, and in the meantime points
+     * the stick along the best shot found so far.
+     */
     public void calculatePoint() {
-      if (eightBall != null) {
-        Double d = bestShot(eightBall);
-        targetDrawback = maxDrawback * (d == null ? 0.75 : d);
-        return;
-      }
-      Ball eight = null; boolean ballsLeft = false;
-      for (Ball b : balls) {
-        if (b == cue) continue;
-        if (b.number == 8) eight = b;
-        if (turn0IsSolid != null && b.isStriped != turn0IsSolid) continue;
-        if (b.number != 8) ballsLeft = true;
-        Double d = bestShot(b);
-        if (d != null) {
-          targetDrawback = maxDrawback * d;
-          return;
-        }
-      }
-      if (!ballsLeft && eight != null) eightBall = eight;
-      AAA();
-      targetDrawback = maxDrawback * 0.9;
+      if (search == null) think(new ShotSearch(sim, turn, turn0IsSolid));
+      aimAt(search.getBest());
     }
 
-    // TODO: fix
-    void AAA() {
-      int safe = 0;
-      System.out.println("--> Last Resort! Calling AAA()");
-
-      // arbitrary values !!!!
-      for (double angle = 0; angle <= 12; angle = angle+0.22) {
-        safe++;
-        if (checkSafe(safe, 100000)) return;
-
-        stick = new Point2D.Double(Math.sin(angle), Math.cos(angle));
-        stickDX = stick.x; stickDY = stick.y;
-        // cueSpinY = 1;
-        Savestate save = new Savestate(); // save state !!!
-        stickDrawback = maxDrawback * 0.9;
-        release();
-        updateTimer.stop(); // update manually
-
-        // test sticking
-        while (true) {
-          safe++;
-          if (checkSafe(safe, 100000)) return;
-
-          boolean allStopped = true, collided = false;
-          for (Ball b : balls) {
-            safe++;
-            if (checkSafe(safe, 100000)) return;
-            if (b == cue) {
-              final Ball collide = b.update(0.02);
-              if (collide != null && (turn0IsSolid == null || collide.isStriped == turn0IsSolid)) {
-                System.out.println("Collided with #" + collide.number + ", " + (collide.isStriped ? "striped" : "solid"));
-                collided = true;
-              }
-            } else b.update(0.02); // constant can be changed
-            b.fixVelocities();
-            if (b.scored) { b.vx = 0; b.vy = 0; }
-            if (!b.scored && (b.vx != 0 || b.vy != 0)) allStopped = false;
+    protected void aimAt(Shot shot) {
+      if (shot == null) return;
+      stickDX = shot.stickDX; stickDY = shot.stickDY;
+    }
+
+    protected void think(final ShotSearch search) {
+      this.search = search;
+      aiExecutor.execute(new Runnable() {
+        public void run() {
+          final JfrEvents.Search event = new JfrEvents.Search();
+          event.begin();
+          final long start = System.nanoTime();
+          Shot found;
+          try {
+            found = search.findShot(searchBudgetMS);
+          } catch (RuntimeException e) {
+            // play what it had so far rather than think forever
+            System.err.println("Shot search failed:");
+            e.printStackTrace();
+            found = search.getBest();
           }
-          if (allStopped || collided) {
-            if (collided) System.out.println("  Found one that collided! (θ = " + angle + ")");
-            save.load();
-            // if (cue.scored) cueSpinY = -1; //debug
-            if (collided) return;
-            else break;
+          if (found == null) found = search.straightAt(search.firstTarget());
+          final Shot shot = found;
+          searchTimes.record((System.nanoTime() - start) / 1e6);
+          event.end();
+          if (event.shouldCommit()) {
+            event.search = search.getClass().getSimpleName();
+            event.rollouts = search.getRollouts();
+            event.commit();
           }
+          SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+              // cancelled, or replaced by another AI, while searching
+              if (AI.this.search != search || PoolGame.this.AI != AI.this) return;
+              AI.this.search = null;
+              stick = new Point2D.Double(shot.stickDX, shot.stickDY);
+              cueSpinX = shot.spinX; cueSpinY = shot.spinY;
+              targetDrawback = shot.drawback;
+            }
+          });
         }
-      }
+      });
     }
 
-    boolean checkSafe(int safe, int limit) {
-      if (safe > limit) {
-        System.out.println("Loop safe check exceeded " + limit + "!");
-        // Thread.dumpStack();
-        return true;
-      }
-      return false;
+    public boolean isThinking() {
+      return search != null;
     }
 
-    Double bestShot(Ball b) {
-      for (int y = 1200 - (int)(2.8*b.R); y >= -1200 + 2.8*b.R; y += -1200 + 2.8*b.R) {
-        loop: for (int x = -600 + (int)(2.8*b.R); x <= 600 - 2.8*b.R; x += 600 - 2.8*b.R) {
-          if (x == 0 && y == 0) continue;
-
-          // calculate shot
-          double dx = x - b.x, dy = y - b.y;
-          final double mag = Math.sqrt(dx * dx + dy * dy) * 1.05;
-          dx /= mag; dy /= mag;
-
-          Point2D.Double shot = new Point2D.Double(b.x - dx * b.R * 2, b.y - dy * b.R * 2);
-
-          // TODO: fix
-          // check for clear path
-          cuePoint = new Point2D.Double(cue.x, cue.y);
-          while (shot.distanceSq(cue.x, cue.y) > b.R*b.R*4 && !cue.isWallColliding()) {
-            cue.x += Math.signum(shot.x - cue.x) * b.R;
-            cue.y += Math.signum(shot.y - cue.y) * b.R;
-            if (cue.getBallColliding() != null) {
-              cue.x = cuePoint.x; cue.y = cuePoint.y;
-              continue loop;
-            }
-          }
-          cue.x = cuePoint.x; cue.y = cuePoint.y;
-
-          if (cuePoint.distanceSq(b.x, b.y) < cuePoint.distanceSq(shot))
-            continue;
-          
-          shot = new Point2D.Double(cue.x - shot.x, cue.y - shot.y);
-          if (tryShot(shot, b, 0.4) != null) return 0.4;
-          if (tryShot(shot, b, 0.7) != null) return 0.7;
-          if (tryShot(shot, b, 0.2) != null) return 0.2;
-        }
-      }
-      return null;
+    public void cancel() {
+      if (search == null) return;
+      search.cancel();
+      search = null;
     }
+  }
 
-    Double tryShot(Point2D.Double shot, Ball target, double drawback) {
-      stick = shot;
-      normalize();
-      Savestate save = new Savestate(); // save state !!!
-      stickDX = stick.x; stickDY = stick.y;
-      stickDrawback = maxDrawback * drawback;
-      release();
-      updateTimer.stop(); // update manually
-      
-      // stickDX = stick.x; stickDY = stick.y;
-      // repaint();
-      // System.out.println("[" + stickDX + ", " + stickDY + "] aim " + target.number);
-      // try {
-      //   java.util.Scanner scan = new java.util.Scanner(System.in);
-      //   scan.nextLine();
-      //   scan.close();
-      // } catch (Exception e) {
-
-      // }
-      
-      // if (turn) return true;
-
-      while (true) {
-        boolean allStopped = true;
-        int score = 0;
-        for (Ball b : balls) {
-          b.update(0.02); // constant can be changed
-          b.fixVelocities();
-          if (b.scored) { b.vx = 0; b.vy = 0; }
-          if (!b.scored && (b.vx != 0 || b.vy != 0)) allStopped = false;
-          
-          if (b == cue || !b.scored) continue;
-          if (turn0IsSolid != null) {
-            if (b == eightBall) score += 1;
-            else score += turn0IsSolid == (turn == b.isStriped) ? 1 : -1;
-          } else {
-            turn0IsSolid = turn == b.isStriped;
-            score += 1;
-          }
+  public final Color table = new Color(45, 110, 100);
+  public final Color tableDark = new Color(30, 95, 85);
+  public final Color tableBorder = new Color(100, 60, 30);
+
+  /*
+   * Switches between Swing painting the panel whenever it likes and an
+   * ActiveRenderer drawing onto a canvas covering it, paced and only when
+   * something changed. Call on the EDT.
+   */
+  public void setActiveRendering(boolean active) {
+    if (active == (renderer != null)) return;
+    if (active) {
+      final ActiveRenderer r = new ActiveRenderer(new ActiveRenderer.Scene() {
+        public void draw(Graphics2D g) {
+          drawFrame(g);
         }
-        if (allStopped) {
-          if (score != 0) System.out.println("  #" + target.number + " Scored -> " + score + (score > 0 ? "\t\t!!!" : ""));
-          save.load();
-          if (cue.scored) cueSpinY = -1; //debug
-          return score > 0 ? drawback : null;
+
+        public boolean isAnimating() {
+          return loop.isRunning();
         }
-      }
+      });
+      r.getSurface().addMouseListener(mouse);
+      r.getSurface().addMouseMotionListener(mouse);
+      setLayout(new BorderLayout());
+      add(r.getSurface(), BorderLayout.CENTER);
+      renderer = r;
+      r.start();
+    } else {
+      renderer.stop();
+      remove(renderer.getSurface());
+      renderer = null;
     }
+    revalidate();
+    super.repaint();
+  }
 
-    void normalize() {
-      final double mag = stick.distance(0, 0);
-      stick.x /= mag; stick.y /= mag;
-    }
+  public boolean isActiveRendering() {
+    return renderer != null;
   }
 
-  public final Color table = new Color(45, 110, 100);
-  public final Color tableDark = new Color(30, 95, 85);
-  public final Color tableBorder = new Color(100, 60, 30);
+  // with an ActiveRenderer, asks it for a frame instead; safe from any thread
+  public void repaint() {
+    final ActiveRenderer r = renderer;
+    if (r != null) r.requestFrame();
+    else super.repaint();
+  }
 
   public void paintComponent(Graphics g) {
-    super.paintComponent(g);
+    // the renderer's canvas covers the panel
+    if (renderer != null) return;
+    drawFrame(g);
+  }
+
+  private void drawFrame(Graphics g) {
+    final JfrEvents.Frame event = new JfrEvents.Frame();
+    event.begin();
+    final long start = System.nanoTime();
+    drawScene(g);
+    frameTimes.record((System.nanoTime() - start) / 1e6);
+    if (showHud) drawHud((Graphics2D)g);
+
+    event.end();
+    if (event.shouldCommit()) {
+      final Rectangle clip = g.getClipBounds();
+      event.active = renderer != null;
+      event.area = clip != null ? (long)clip.width * clip.height : (long)getWidth() * getHeight();
+      event.commit();
+    }
+  }
+
+  private void drawScene(Graphics g) {
+    // the table is the simulation thread's while the loop runs
+    paintedAim = loop.isRunning() ? null : aimBounds();
+    paintedDrawback = stickDrawback; paintedSpinX = cueSpinX; paintedSpinY = cueSpinY;
+    paintedState = gamestate;
+    drawTableLayer((Graphics2D)g);
 
     Graphics2D g2 = ((Graphics2D)g.create());
     g2.setRenderingHints(new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON));
@@ -822,31 +692,13 @@ public class PoolGame extends JPanel {
     g2.translate(getWidth()/2, getHeight()/2);
     g2.scale(scale, scale);
 
-    // Draw Table
-    g2.setColor(tableBorder);
-    g2.fillRoundRect(-600 - cue.R*2, -1200 - cue.R*2, 1200 + cue.R*4, 2400 + cue.R*4, 80, 80);
-    g2.setColor(tableDark);
-    g2.fillRect(-600, -1200, 1200, 2400);
-    g2.setColor(table);
-    g2.fillRect((int)(-610 + cue.R*1.5), (int)(-1210 + cue.R*1.5), (int)(1220 - cue.R*3), (int)(2420 - cue.R*3));
-    
-    g2.setColor(table);
-    for (int x : new int[] {-600, 600 - cue.R*3}) {
-      g2.fillRect(x, 1200 - cue.R*3, cue.R * 3, cue.R * 3);
-      g2.fillRect(x, (int)(-cue.R*1.5), cue.R * 3, cue.R * 3);
-      g2.fillRect(x, -1200, cue.R * 3, cue.R * 3);
-    }
-
-    // Draw Holes
-    for (int y : new int[] {1200, 0, -1200}) {
-      g2.setColor(Color.BLACK);
-      g2.fillOval((int)(-600 - cue.R * 1.5), (int)(y - cue.R * 1.5), cue.R * 3, cue.R * 3);
-      g2.fillOval((int)(600 - cue.R * 1.5), (int)(y - cue.R * 1.5), cue.R * 3, cue.R * 3);
-    }
-
     // Draw Balls
-    for (Ball ball : balls) {
-      ball.draw(g2);
+    if (loop.isRunning()) drawFrames(g2);
+    else {
+      for (int i = 0; i < sim.size(); i++) {
+        if (sim.isScored(i)) continue;
+        drawBall(g2, sim.number(i), sim.isStriped(i), sim.x[i], sim.y[i], sim.rotX[i], sim.rotY[i], sim.R);
+      }
     }
 
     drawScoredBalls(g2);
@@ -887,60 +739,370 @@ public class PoolGame extends JPanel {
 
     // home button
     g.drawImage(getImage("com/poolgame/images/home.png"), getWidth()-56, 8, this);
+  }
+
+  /*
+   * Most changes only touch a small part of the panel, so rather than
+   * repaint() they ask for just the panel area showing what changed, in
+   * world coordinates. Aim changes repaint the stick and hints where they
+   * were last drawn and where they are now; ticks repaint the balls that
+   * were moving over the last three ticks, as frames are drawn between
+   * them. Changes of state still repaint everything.
+   */
+  private static final Rectangle2D meterBounds = new Rectangle2D.Double(-960, -700, 220, 2700);
+  private static final Rectangle2D spinBounds = new Rectangle2D.Double(740, -100, 200, 200);
+  private static final Rectangle2D spinMenuBounds = new Rectangle2D.Double(-200, -200, 400, 400);
+
+  // what aimBounds(), the drawback and the spin were when the panel was
+  // last painted; EDT only
+  private Rectangle2D paintedAim = null;
+  private double paintedDrawback, paintedSpinX, paintedSpinY;
+  private Gamestate paintedState;
+  // balls that moved in the tick before last; simulation thread only
+  private Rectangle2D lastMoved = null;
+
+  // repaints the part of the panel showing these world bounds
+  private void repaintWorld(Rectangle2D world) {
+    final ActiveRenderer r = renderer;
+    if (r != null) {
+      r.requestFrame();
+      return;
+    }
+    final double scale = getScaleFactor();
+    final int x0 = (int)Math.floor(world.getMinX() * scale) + getWidth()/2 - 2;
+    final int y0 = (int)Math.floor(world.getMinY() * scale) + getHeight()/2 - 2;
+    final int x1 = (int)Math.ceil(world.getMaxX() * scale) + getWidth()/2 + 2;
+    final int y1 = (int)Math.ceil(world.getMaxY() * scale) + getHeight()/2 + 2;
+    super.repaint(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+  }
+
+  // after the aim, the drawback, the spin or the cue ball's spot changed
+  private void repaintControls() {
+    // nothing here changes during a shot, and the table is not ours to read
+    if (loop.isRunning()) return;
+    if (paintedAim == null || renderer != null) {
+      repaint();
+      return;
+    }
+    repaintWorld(paintedAim.createUnion(aimBounds()));
+    if (stickDrawback != paintedDrawback) repaintWorld(meterBounds);
+    if (cueSpinX != paintedSpinX || cueSpinY != paintedSpinY || gamestate != paintedState) {
+      repaintWorld(gamestate == Gamestate.spinMenu || paintedState == Gamestate.spinMenu ? spinMenuBounds.createUnion(spinBounds) : spinBounds);
+    }
+  }
+
+  // after a tick: the balls that moved
+  private void repaintMoving() {
+    final TableSimulation a = prevFrame, b = currFrame;
+    if (renderer != null || a.size() != b.size() || a.R != b.R) {
+      repaint();
+      return;
+    }
+    // both frames are only written on this thread, so they can be read here
+    Rectangle2D moved = null;
+    final int pad = b.R + 12;
+    for (int i = 0; i < b.size(); i++) {
+      if (a.x[i] == b.x[i] && a.y[i] == b.y[i] && a.rotX[i] == b.rotX[i] && a.rotY[i] == b.rotY[i] && a.isScored(i) == b.isScored(i)) continue;
+      final Rectangle2D r = new Rectangle2D.Double(Math.min(a.x[i], b.x[i]) - pad, Math.min(a.y[i], b.y[i]) - pad,
+        Math.abs(a.x[i] - b.x[i]) + 2 * pad, Math.abs(a.y[i] - b.y[i]) + 2 * pad);
+      moved = moved == null ? r : moved.createUnion(r);
+    }
+    // the frame on screen was drawn between the two ticks before these
+    if (moved != null) repaintWorld(moved);
+    if (lastMoved != null) repaintWorld(lastMoved);
+    lastMoved = moved;
+  }
+
+  /*
+   * The world bounds of the cue ball, its scratch markers, the stick and the
+   * aim hints, drawn as things stand now, with room for strokes and shadows.
+   */
+  private Rectangle2D aimBounds() {
+    final Rectangle2D.Double r = new Rectangle2D.Double(sim.x[CUE], sim.y[CUE], 0, 0);
+    r.add(cuePoint);
+    if (stickDX != 0 || stickDY != 0) {
+      r.add(cuePoint.x + stickDX * (1200 + stickDrawback), cuePoint.y + stickDY * (1200 + stickDrawback));
+      for (TableSimulation.Contact c : aimPath()) {
+        r.add(c.x, c.y);
+        if (c.kind != TableSimulation.Contact.Kind.BALL) continue;
+        final double bx = sim.x[c.ball], by = sim.y[c.ball];
+        r.add(bx + 2*(bx - c.x), by + 2*(by - c.y));
+      }
+      final ShotOutcome outcome = breakPreview();
+      if (outcome != null) {
+        r.add(outcome.cueX, outcome.cueY);
+        // the "N down" label
+        r.add(cuePoint.x + sim.R * 2 + 520, cuePoint.y - 50);
+      }
+    }
+    final int pad = sim.R + 50;
+    return new Rectangle2D.Double(r.x - pad, r.y - pad, r.width + 2 * pad, r.height + 2 * pad);
+  }
+
+  /*
+   * The background, the table and the parts of the GUI that never move,
+   * drawn once into an image at the screen's resolution and copied in on
+   * every repaint after that. It is drawn again when the window is resized,
+   * the screen's scale changes or the balls change size.
+   */
+  private BufferedImage tableLayer;
+  private double tableLayerScaleX, tableLayerScaleY;
+  private int tableLayerR;
+
+  private void drawTableLayer(Graphics2D g) {
+    final AffineTransform at = g.getTransform();
+    final double sx = at.getScaleX(), sy = at.getScaleY();
+    // rotated or flipped: no image would line up, so draw it directly
+    if (sx <= 0 || sy <= 0 || at.getShearX() != 0 || at.getShearY() != 0) {
+      drawTable(g);
+      return;
+    }
+
+    final int w = (int)Math.ceil(getWidth() * sx), h = (int)Math.ceil(getHeight() * sy);
+    if (w <= 0 || h <= 0) return;
+    if (tableLayer == null || tableLayer.getWidth() != w || tableLayer.getHeight() != h
+      || tableLayerScaleX != sx || tableLayerScaleY != sy || tableLayerR != sim.R) {
+      final GraphicsConfiguration gc = getGraphicsConfiguration();
+      tableLayer = gc != null ? gc.createCompatibleImage(w, h) : new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      tableLayerScaleX = sx; tableLayerScaleY = sy; tableLayerR = sim.R;
+      final Graphics2D lg = tableLayer.createGraphics();
+      lg.scale(sx, sy);
+      drawTable(lg);
+      lg.dispose();
+    }
+
+    final Graphics2D g2 = (Graphics2D)g.create();
+    g2.setTransform(AffineTransform.getTranslateInstance(Math.round(at.getTranslateX()), Math.round(at.getTranslateY())));
+    g2.drawImage(tableLayer, 0, 0, null);
+    g2.dispose();
+  }
+
+  // everything in the table layer, onto g in component coordinates
+  private void drawTable(Graphics2D g) {
+    g.setColor(getBackground());
+    g.fillRect(0, 0, getWidth(), getHeight());
+
+    final Graphics2D g2 = (Graphics2D)g.create();
+    g2.setRenderingHints(new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON));
+    final double scale = getScaleFactor();
+    g2.translate(getWidth()/2, getHeight()/2);
+    g2.scale(scale, scale);
+
+    // Draw Table
+    g2.setColor(tableBorder);
+    g2.fillRoundRect(-600 - sim.R*2, -1200 - sim.R*2, 1200 + sim.R*4, 2400 + sim.R*4, 80, 80);
+    g2.setColor(tableDark);
+    g2.fillRect(-600, -1200, 1200, 2400);
+    g2.setColor(table);
+    g2.fillRect((int)(-610 + sim.R*1.5), (int)(-1210 + sim.R*1.5), (int)(1220 - sim.R*3), (int)(2420 - sim.R*3));
+    
+    g2.setColor(table);
+    for (int x : new int[] {-600, 600 - sim.R*3}) {
+      g2.fillRect(x, 1200 - sim.R*3, sim.R * 3, sim.R * 3);
+      g2.fillRect(x, (int)(-sim.R*1.5), sim.R * 3, sim.R * 3);
+      g2.fillRect(x, -1200, sim.R * 3, sim.R * 3);
+    }
+
+    // Draw Holes
+    for (int y : new int[] {1200, 0, -1200}) {
+      g2.setColor(Color.BLACK);
+      g2.fillOval((int)(-600 - sim.R * 1.5), (int)(y - sim.R * 1.5), sim.R * 3, sim.R * 3);
+      g2.fillOval((int)(600 - sim.R * 1.5), (int)(y - sim.R * 1.5), sim.R * 3, sim.R * 3);
+    }
+
+    drawGUIBackground(g2);
+    g2.dispose();
+  }
+
+  /*
+   * The performance HUD: the game's state, what each part of it is doing,
+   * then frame, tick and search times as percentiles over the last few
+   * hundred of each, the work a tick did, the AI's rollout rate and how
+   * long the EDT keeps posted work waiting. Drawn in the top-left corner
+   * over everything else, and redrawn by hudTimer as the numbers change.
+   */
+  public void setShowHud(boolean show) {
+    showHud = show;
+    if (show) {
+      Metrics.startEdtProbe(100);
+      hudTimer.start();
+    } else {
+      hudTimer.stop();
+      Metrics.stopEdtProbe();
+    }
+    repaint();
+  }
 
-    // DEBUG:
+  public boolean isShowingHud() {
+    return showHud;
+  }
+
+  private Rectangle hudBounds() {
+    return new Rectangle(0, 16, 480, 260);
+  }
+
+  private void drawHud(Graphics2D graphics) {
+    final Graphics2D g = (Graphics2D)graphics.create();
+    final Rectangle r = hudBounds();
+    g.setColor(new Color(0, 0, 0, 160));
+    g.fillRect(r.x, r.y, r.width, r.height);
     g.setColor(Color.WHITE);
-    g.drawString("Gamestate: " + gamestate, 10, 32);
-    g.drawString("Turn: " + (turn ? 1 : 0), 10, 44);
-    g.drawString("isUserTurn(): " + isUserTurn(), 10, 56);
-    g.drawString("You are " + (turn0IsSolid == null ? "any" : (turn0IsSolid ? "solids" : "stripes")), 10, 68);
-    g.drawString("Game Timer: " + (updateTimer.isRunning() ? "running" : "idle"), 10, 92);
-    g.drawString("AI Timer: " + (AITimer.isRunning() ? "running" : "idle"), 10, 104);
+    g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+
+    final Metrics.Counter rollouts = Metrics.shared.counter("ai.rollouts");
+    final String[] lines = {
+      "Gamestate: " + gamestate + ", turn " + (turn ? 1 : 0) + (isUserTurn() ? " (yours)" : ""),
+      "You are " + (turn0IsSolid == null ? "any" : (turn0IsSolid ? "solids" : "stripes")),
+      "Sim Loop: " + (loop.isRunning() ? "running" : "idle") + " @ " + Math.round(1 / loop.getTickSeconds()) + "Hz",
+      "AI Timer: " + (AITimer.isRunning() ? "running" : "idle") + (AI.isThinking() ? ", thinking" : ""),
+      "Step: " + lastStepNanos / 1000 + "us (" + sim.size() + " balls), " + Metrics.shared.counter("sim.capped").total() + " cut short",
+      "AI cache: " + OutcomeCache.shared,
+      "Balls: " + sprites,
+      "Images: " + ImageCache.shared,
+      "Render: " + (renderer != null ? renderer : "passive"),
+      "",
+      String.format("%-13s %7s %7s %7s %7s", "", "p50", "p90", "p99", "max"),
+      hudLine("frame ms", frameTimes),
+      hudLine("tick ms", tickTimes),
+      hudLine("contacts/tick", tickContacts),
+      hudLine("pairs/tick", tickPairChecks),
+      hudLine("search ms", searchTimes),
+      hudLine("EDT wait ms", Metrics.shared.histogram("edt.ms")),
+      String.format("%-13s %7.0f/s, %d in all", "rollouts", rollouts.rate(), rollouts.total())
+    };
+    for (int k = 0; k < lines.length; k++) g.drawString(lines[k], r.x + 8, r.y + 16 + k * 13);
+    g.dispose();
   }
 
-  public void drawHints(Graphics2D g2) {
-    if ((gamestate != Gamestate.cuing && gamestate != Gamestate.spinMenu) || (stickDX == 0 && stickDY == 0) || cueMoving) return;
+  private static String hudLine(String label, Metrics.Histogram h) {
+    return String.format("%-13s %7.2f %7.2f %7.2f %7.2f", label, h.percentile(50), h.percentile(90), h.percentile(99), h.max());
+  }
 
-    // Find first collision
-    int save = 0;
-    while (cue.getBallColliding() == null && !cue.isWallColliding() && !cue.isBorderColliding() && save < 100000) {
-      cue.x -= stickDX;
-      cue.y -= stickDY;
-      save++;
+  // balls drawn between the last two ticks, by how far we are into the next one
+  private void drawFrames(Graphics2D g2) {
+    synchronized (frameLock) {
+      final TableSimulation a = prevFrame, b = currFrame;
+      final double alpha = TableSimulation.clamp((System.nanoTime() - frameNanos) / (double)loop.getTickNanos(), 0, 1);
+      for (int i = 0; i < b.size(); i++) {
+        if (b.isScored(i)) continue;
+        double x = b.x[i], y = b.y[i];
+        if (i < a.size() && !a.isScored(i)) {
+          x = a.x[i] + (x - a.x[i]) * alpha;
+          y = a.y[i] + (y - a.y[i]) * alpha;
+        }
+        drawBall(g2, b.number(i), b.isStriped(i), x, y, b.rotX[i], b.rotY[i], b.R);
+      }
     }
+  }
 
+  // cushions the aim line is followed off
+  private static final int hintBounces = 2;
+
+  public void drawHints(Graphics2D g2) {
+    if ((gamestate != Gamestate.cuing && gamestate != Gamestate.spinMenu) || (stickDX == 0 && stickDY == 0) || cueMoving) return;
+
+    // the cue ball's path, off up to hintBounces cushions
+    final List<TableSimulation.Contact> path = aimPath();
+    double dx = -stickDX, dy = -stickDY, px = cuePoint.x, py = cuePoint.y;
     g2.setStroke(new BasicStroke(8, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
     g2.setColor(Color.WHITE);
-    g2.drawLine((int)cuePoint.x, (int)cuePoint.y, (int)(cue.x + stickDX * cue.R), (int)(cue.y + stickDY * cue.R));
-    final int R = cue.R - 10;
-    g2.drawOval((int)cue.x - R, (int)cue.y - R, R * 2, R * 2);
+    for (int k = 0; k < path.size() - 1; k++) {
+      final TableSimulation.Contact bounce = path.get(k);
+      g2.drawLine((int)px, (int)py, (int)bounce.x, (int)bounce.y);
+      px = bounce.x; py = bounce.y;
+      dx = bounce.bounceX(dx); dy = bounce.bounceY(dy);
+      // fainter after each bounce, as the real path strays further from it
+      g2.setColor(new Color(255, 255, 255, 160 - k * 48));
+      g2.setStroke(new BasicStroke(6 - k * 2, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+    }
+
+    final TableSimulation.Contact contact = path.get(path.size() - 1);
+    final double cx = contact.x, cy = contact.y;
+    g2.drawLine((int)px, (int)py, (int)(cx - dx * sim.R), (int)(cy - dy * sim.R));
+    final int R = sim.R - 10;
+    g2.drawOval((int)cx - R, (int)cy - R, R * 2, R * 2);
 
-    Ball collide = cue.getBallColliding();
-    if (collide != null) {
-      g2.drawLine((int)collide.x, (int)collide.y, (int)(collide.x + 2*(collide.x - cue.x)), (int)(collide.y + 2*(collide.y - cue.y)));
+    if (contact.kind == TableSimulation.Contact.Kind.BALL) {
+      final double bx = sim.x[contact.ball], by = sim.y[contact.ball];
+      g2.drawLine((int)bx, (int)by, (int)(bx + 2*(bx - cx)), (int)(by + 2*(by - cy)));
     }
 
-    cue.x = cuePoint.x;
-    cue.y = cuePoint.y;
+    // on the break, what the nearest shot in the break table did
+    final ShotOutcome outcome = breakPreview();
+    if (outcome != null) {
+      g2.setColor(new Color(255, 255, 255, 96));
+      g2.setStroke(new BasicStroke(4));
+      if (!outcome.isScratch()) g2.drawOval((int)outcome.cueX - R, (int)outcome.cueY - R, R * 2, R * 2);
+      g2.setFont(getFont().deriveFont(Font.BOLD, 40));
+      final int down = outcome.pocketed.length - (outcome.isScratch() ? 1 : 0);
+      g2.drawString(down + " down" + (outcome.isScratch() ? ", scratch" : ""), (int)cuePoint.x + sim.R * 2, (int)cuePoint.y);
+    }
+  }
+
+  // where the cue ball is aimed: each cushion it comes off, then what stops it
+  private List<TableSimulation.Contact> aimPath() {
+    final List<TableSimulation.Contact> path = new ArrayList<TableSimulation.Contact>();
+    double dx = -stickDX, dy = -stickDY;
+    TableSimulation.Contact contact = sim.cast(sim.x[CUE], sim.y[CUE], dx, dy, CUE);
+    path.add(contact);
+    while (path.size() <= hintBounces && contact.kind != TableSimulation.Contact.Kind.BALL && contact.kind != TableSimulation.Contact.Kind.POCKET) {
+      dx = contact.bounceX(dx); dy = contact.bounceY(dy);
+      contact = sim.cast(contact.x, contact.y, dx, dy, CUE);
+      path.add(contact);
+    }
+    return path;
+  }
+
+  // the break table's nearest break to the shot being lined up, or null
+  private ShotOutcome breakPreview() {
+    final BreakTable breaks = BreakTable.shared();
+    if (breaks == null || stickDrawback <= 0) return null;
+    final int cell = breaks.cell(sim);
+    if (cell == -1) return null;
+    return breaks.nearestOutcome(cell, new Shot(stickDX, stickDY, cueSpinX, cueSpinY, stickDrawback));
   }
 
   public void drawScoredBalls(Graphics2D g2) {
-    for (Ball b : player1Balls) b.draw(g2);
-    for (Ball b : player2Balls) b.draw(g2);
+    final int R = TableSimulation.defaultR * 5 / 4;
+    for (int k = 0; k < player1Balls.size(); k++) {
+      final int i = player1Balls.get(k);
+      drawBall(g2, sim.number(i), sim.isStriped(i), -760 - k/4 * 110, 1220 - k % 4 * 110, 0, 0, R);
+    }
+    for (int k = 0; k < player2Balls.size(); k++) {
+      final int i = player2Balls.get(k);
+      drawBall(g2, sim.number(i), sim.isStriped(i), 760 + k/4 * 110, 1220 - k % 4 * 110, 0, 0, R);
+    }
+  }
+
+  private static final RoundRectangle2D meter = new RoundRectangle2D.Double(-930, -700, 160, 1400, 100, 100);
+
+  // the drawback meter's frame and the cancel button, kept in the table layer
+  public void drawGUIBackground(Graphics2D g2) {
+    g2.setColor(new Color(100, 100, 200));
+    g2.fill(meter);
+
+    g2.setColor(new Color(100, 100, 100));
+    g2.fillRoundRect(-930, -900, 160, 160, 100, 100); // cancel button
+
+    g2.setStroke(new BasicStroke(5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+    g2.setColor(new Color(0, 0, 0, 32));
+    g2.drawLine(-910, -880, -790, -750);
+    g2.drawLine(-910, -750, -790, -880);
   }
 
   public void drawGUI(Graphics2D g2) {
     // scratch
     if (canMoveCue) {
+      final int cx = (int)sim.x[CUE], cy = (int)sim.y[CUE];
       g2.setColor(Color.LIGHT_GRAY);
-      g2.fillRect((int)cue.x-cue.R-8, (int)cue.y-cue.R-8, 32, 8);
-      g2.fillRect((int)cue.x+cue.R-24, (int)cue.y-cue.R-8, 32, 8);
-      g2.fillRect((int)cue.x-cue.R-8, (int)cue.y-cue.R, 8, 24);
-      g2.fillRect((int)cue.x+cue.R, (int)cue.y-cue.R, 8, 24);
-      g2.fillRect((int)cue.x-cue.R-8, (int)cue.y+cue.R+8, 32, 8);
-      g2.fillRect((int)cue.x+cue.R-24, (int)cue.y+cue.R+8, 32, 8);
-      g2.fillRect((int)cue.x-cue.R-8, (int)cue.y+cue.R-16, 8, 24);
-      g2.fillRect((int)cue.x+cue.R, (int)cue.y+cue.R-16, 8, 24);
+      g2.fillRect(cx-sim.R-8, cy-sim.R-8, 32, 8);
+      g2.fillRect(cx+sim.R-24, cy-sim.R-8, 32, 8);
+      g2.fillRect(cx-sim.R-8, cy-sim.R, 8, 24);
+      g2.fillRect(cx+sim.R, cy-sim.R, 8, 24);
+      g2.fillRect(cx-sim.R-8, cy+sim.R+8, 32, 8);
+      g2.fillRect(cx+sim.R-24, cy+sim.R+8, 32, 8);
+      g2.fillRect(cx-sim.R-8, cy+sim.R-16, 8, 24);
+      g2.fillRect(cx+sim.R, cy+sim.R-16, 8, 24);
     }
 
     // spin
@@ -957,16 +1119,13 @@ public class PoolGame extends JPanel {
       g2.fillOval(820 + (int)(cueSpinX * 80), -20 + (int)(cueSpinY * 80), 40, 40);
     
     // cue
-    g2.setColor(new Color(100, 100, 200));
-    RoundRectangle2D rrect = new RoundRectangle2D.Double(-930, -700, 160, 1400, 100, 100);
-    g2.fill(rrect);
     g2.setColor(new Color(100, 100, 100));
     final double pixel = stickDrawback / maxDrawback;
-    g2.setClip(rrect);
-    g2.fillRect(-930, -700 + (int)(1400 * pixel), 160, (int)(1400 * (1-pixel)));
-    g2.setClip(null);
-
-    g2.fillRoundRect(-930, -900, 160, 160, 100, 100); // cancel button
+    // filled as a shape rather than through a clip, so it comes out the same
+    // whatever part of the panel is being repainted
+    final Area fill = new Area(meter);
+    fill.intersect(new Area(new Rectangle(-930, -700 + (int)(1400 * pixel), 160, (int)(1400 * (1-pixel)))));
+    g2.fill(fill);
 
     g2.setStroke(new BasicStroke(5, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
     g2.setColor(new Color(0, 0, 0, 32));
@@ -974,9 +1133,6 @@ public class PoolGame extends JPanel {
       g2.drawLine(-900, y, -800, y);
     }
 
-    g2.drawLine(-910, -880, -790, -750);
-    g2.drawLine(-910, -750, -790, -880);
-
     g2.setStroke(new BasicStroke(40, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
     g2.setColor(shadow);
     g2.drawLine(-840, 560 + (int)(stickDrawback*2.27), -840, -650 + (int)(stickDrawback*2.27));
@@ -997,19 +1153,28 @@ public class PoolGame extends JPanel {
     PURPLE = new Color(100, 0, 160),
     RED = new Color(200, 0, 0);
 
+  private static final Color CUE_COLOR = new Color(240, 240, 240);
+  // indexed by ball number
+  private static final Color[] BALL_COLORS = {
+    null, YELLOW, GREEN, ORANGE, PURPLE, RED, BLUE, MAROON, Color.BLACK,
+    GREEN, ORANGE, PURPLE, RED, BLUE, YELLOW, MAROON
+  };
+
   public void resetGame() {
     isSandbox = false;
     hasScored = false;
     turn0IsSolid = null;
-    player1Balls = new ArrayList<Ball>();
-    player2Balls = new ArrayList<Ball>();
+    player1Balls = new ArrayList<Integer>();
+    player2Balls = new ArrayList<Integer>();
 
     gamestate = Gamestate.cuing;
     AITimer.stop();
-    updateTimer.stop();
+    AI.cancel();
+    AI.stick = null;
+    loop.stop();
+    pottedQueue.clear();
     canMoveCue = true;
     cueMoving = false;
-    cue = null;
 
     initGame();
 
@@ -1023,15 +1188,31 @@ public class PoolGame extends JPanel {
     }
   }
 
+  // sandbox table covered in n balls, all sent rolling
+  public void stressTest(int n) {
+    resetGame();
+    isSandbox = true;
+    sim = StressTest.scatter(n, System.nanoTime());
+    StressTest.kick(sim, new Random());
+    cuePoint.setLocation(sim.x[CUE], sim.y[CUE]);
+    canMoveCue = false;
+    gamestate = Gamestate.game;
+    startLoop();
+  }
+
   public void initGame() {
-    balls = new ArrayList<Ball>(16);
-    cue = new Ball(new Color(240, 240, 240), false, -1, 0, 600);
-    cuePoint = new Point2D.Double(cue.x, cue.y);
-    balls.add(cue);
-    
+    if (sim.R != TableSimulation.defaultR) sim = new TableSimulation(16);
+    sim.clear();
+    rack(sim);
+    cuePoint = new Point2D.Double(sim.x[CUE], sim.y[CUE]);
+  }
+
+  // the cue ball behind the head string and the fifteen balls racked
+  public static void rack(TableSimulation sim) {
+    sim.add(-1, false, 0, 600);
+
     // Add balls
     final int[] numbers = {1, 9, 14, 2, 8, 6, 10, 7, 15, 13, 3, 11, 4, 12, 5};
-    final Color[] colors = {YELLOW, GREEN, YELLOW, GREEN, Color.BLACK, BLUE, ORANGE, MAROON, MAROON, BLUE, ORANGE, PURPLE, PURPLE, RED, RED};
     final boolean[] stripes = {false, true, true, false, false, false, true, true, false, true, false, true, false, true, false};
 
     int row = 0, prev = 0;
@@ -1040,11 +1221,9 @@ public class PoolGame extends JPanel {
         row++;
         prev = i;
       }
-      final int sx = -row * Ball.defaultR + (i-prev) * Ball.defaultR*2;
-      final int sy = (int)(-row * Ball.defaultR*1.8);
-      balls.add(
-        new Ball(colors[i], stripes[i], numbers[i], sx, sy - 600)
-      );
+      final int sx = -row * TableSimulation.defaultR + (i-prev) * TableSimulation.defaultR*2;
+      final int sy = (int)(-row * TableSimulation.defaultR*1.8);
+      sim.add(numbers[i], stripes[i], sx, sy - 600);
     }
   }
 
@@ -1059,17 +1238,8 @@ public class PoolGame extends JPanel {
     return new Point2D.Double((e.getX() - getWidth()/2) / scale, (e.getY() - getHeight()/2) / scale);
   }
 
+  // loaded once and kept; see ImageCache
   static public Image getImage(String pathname) {
-    try {
-      return ImageIO.read(new File(pathname));
-    } catch (Exception e1) {
-      try {
-        return ImageIO.read(Panel.class.getResource(pathname));
-      } catch (Exception e2) {
-        // e1.printStackTrace();
-        // e2.printStackTrace();
-      }
-    }
-    return null;
+    return ImageCache.shared.get(pathname);
   }
 }
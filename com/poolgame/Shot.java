@@ -0,0 +1,36 @@
+package com.poolgame;
+
+/*
+ * A cue strike: the stick direction (pointing from the cue ball back along
+ * the stick, as in PoolGame), the spin offset on the spin dial, and how far
+ * the stick was drawn back.
+ */
+public class Shot {
+  public static final int maxDrawback = 600;
+  public static final int cueMult = 10, cueSpinMult = 50;
+
+  public final double stickDX, stickDY, spinX, spinY, drawback;
+
+  public Shot(double stickDX, double stickDY, double spinX, double spinY, double drawback) {
+    this.stickDX = stickDX; this.stickDY = stickDY;
+    this.spinX = spinX; this.spinY = spinY;
+    this.drawback = drawback;
+  }
+
+  // sets the cue ball moving
+  public void apply(TableSimulation t) {
+    final int CUE = TableSimulation.CUE;
+    t.vx[CUE] = -stickDX * drawback * cueMult;
+    t.vy[CUE] = -stickDY * drawback * cueMult;
+    final double theta = Math.atan2(t.vx[CUE], -t.vy[CUE]);
+    t.spinX[CUE] = Math.cos(theta) * spinX + Math.sin(theta) * spinY;
+    t.spinY[CUE] = Math.cos(theta) * spinY + Math.sin(theta) * spinX;
+    t.spinX[CUE] *= cueSpinMult * (drawback / maxDrawback);
+    t.spinY[CUE] *= cueSpinMult * (drawback / maxDrawback);
+    t.wake(CUE);
+  }
+
+  public String toString() {
+    return "Shot[" + stickDX + ", " + stickDY + " spin " + spinX + ", " + spinY + " d" + drawback + "]";
+  }
+}
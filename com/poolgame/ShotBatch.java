@@ -0,0 +1,135 @@
+package com.poolgame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Plays many shots from one position, for analysis tools: give it a
+ * snapshot of the table and a list of shots and it hands back a ShotOutcome
+ * for each. Shots are played out in parallel on the AI's pool, and results
+ * go to a Listener as each finishes, so a big sweep can be drawn while it
+ * fills in.
+ *
+ * Nothing here touches the game, so it can be used from any thread. The
+ * outcome cache is off by default; a sweep rarely repeats a shot and would
+ * only push the AI's entries out.
+ */
+public class ShotBatch {
+  public interface Listener {
+    // called on a pool thread as each shot finishes, in no particular order
+    void finished(int index, Shot shot, ShotOutcome outcome);
+  }
+
+  // shots a worker takes at a time
+  private static final int chunk = 32;
+
+  private final ShotSearch player;
+
+  public ShotBatch(TableSimulation table) {
+    player = new ShotSearch(table, true, null);
+    player.cache = null;
+  }
+
+  public void setCache(OutcomeCache cache) {
+    player.cache = cache;
+  }
+
+  public void setBreaks(BreakTable breaks) {
+    player.setBreaks(breaks);
+  }
+
+  /*
+   * Starts playing the shots and returns at once; the future is done when
+   * they all are. Shots still waiting when the batch is cancelled are left
+   * out and never reach the listener.
+   */
+  public Future<?> submit(final List<Shot> shots, final Listener listener) {
+    return ShotSearch.pool().submit(new Range(shots, listener, 0, shots.size()));
+  }
+
+  // plays the shots and waits for them; outcomes come back in list order
+  public ShotOutcome[] evaluate(List<Shot> shots) {
+    final ShotOutcome[] outcomes = new ShotOutcome[shots.size()];
+    final Future<?> future = submit(shots, new Listener() {
+      public void finished(int index, Shot shot, ShotOutcome outcome) {
+        outcomes[index] = outcome;
+      }
+    });
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    return outcomes;
+  }
+
+  // stops every shot not yet played, in this and any later submit
+  public void cancel() {
+    player.cancel();
+  }
+
+  public boolean isCancelled() {
+    return player.isCancelled();
+  }
+
+  public long getRollouts() {
+    return player.getRollouts();
+  }
+
+  /*
+   * Every combination of angles evenly round the table, drawbacks evenly up
+   * to the maximum, and spins on a spins x spins grid over the spin dial
+   * (those that fit on it), for heatmaps.
+   */
+  public static List<Shot> grid(int angles, int drawbacks, int spins) {
+    final List<Shot> shots = new ArrayList<Shot>();
+    for (int a = 0; a < angles; a++) {
+      final double angle = 2 * Math.PI * a / angles;
+      for (int d = 1; d <= drawbacks; d++) {
+        for (int sx = 0; sx < spins; sx++) {
+          for (int sy = 0; sy < spins; sy++) {
+            final double spinX = spins == 1 ? 0 : 2.0 * sx / (spins - 1) - 1;
+            final double spinY = spins == 1 ? 0 : 2.0 * sy / (spins - 1) - 1;
+            if (spinX * spinX + spinY * spinY > 1 + 1e-9) continue;
+            shots.add(new Shot(Math.sin(angle), Math.cos(angle), spinX, spinY, Shot.maxDrawback * d / drawbacks));
+          }
+        }
+      }
+    }
+    return shots;
+  }
+
+  // splits the list in halves until a piece is small enough to play through
+  private class Range extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Shot> shots;
+    private final Listener listener;
+    private final int from, to;
+
+    Range(List<Shot> shots, Listener listener, int from, int to) {
+      this.shots = shots; this.listener = listener;
+      this.from = from; this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from > chunk) {
+        final int mid = (from + to) >>> 1;
+        invokeAll(new Range(shots, listener, from, mid), new Range(shots, listener, mid, to));
+        return;
+      }
+      for (int k = from; k < to; k++) {
+        final Shot shot = shots.get(k);
+        final ShotOutcome outcome = player.play(shot, null);
+        if (outcome == null) return;
+        listener.finished(k, shot, outcome);
+      }
+    }
+  }
+}
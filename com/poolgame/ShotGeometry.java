@@ -0,0 +1,132 @@
+package com.poolgame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Ghost-ball geometry for the AI. To send a target ball into a pocket, the
+ * cue ball has to arrive at the ghost position, two radii behind the target
+ * on its line to the pocket. A pot is only worth playing out if the cue
+ * ball's lane to the ghost and the target's lane to the pocket are both
+ * clear, the cut is not too thin and the target's line gets through the
+ * pocket mouth without touching a cushion. What is left is ranked by how
+ * easy it looks, all without stepping the physics.
+ */
+public class ShotGeometry {
+  public static final double maxCutAngle = Math.toRadians(85);
+  // how much harder than the bare minimum to hit, for each candidate
+  private static final double[] powers = {1.3, 2.0};
+
+  public static class Candidate {
+    public final int target, pocket;
+    public final double cutAngle, ease;
+    public final Shot shot;
+
+    Candidate(int target, int pocket, double cutAngle, double ease, Shot shot) {
+      this.target = target; this.pocket = pocket;
+      this.cutAngle = cutAngle; this.ease = ease;
+      this.shot = shot;
+    }
+  }
+
+  private static final int CUE = TableSimulation.CUE;
+
+  private final TableSimulation table;
+  /*
+   * Points to send a ball at, a little past where it drops: the middle of
+   * each pocket, and either side of the middle so that lanes coming in at
+   * an angle can make it past the cushion's tip.
+   */
+  public final double[] pocketX, pocketY;
+
+  public ShotGeometry(TableSimulation table) {
+    this.table = table;
+    final int R = table.R;
+    final double edgeX = 600 - R * 0.5, edgeY = 1200 - R * 0.5;
+    final double[] cornerX = {edgeX, edgeX - R, edgeX};
+    final double[] cornerY = {edgeY, edgeY, edgeY - R};
+    final double[] sideY = {0, R * 0.5, -R * 0.5};
+    pocketX = new double[18]; pocketY = new double[18];
+    int p = 0;
+    for (int sx = -1; sx <= 1; sx += 2) {
+      for (int k = 0; k < 3; k++) {
+        for (int sy = -1; sy <= 1; sy += 2) {
+          pocketX[p] = sx * cornerX[k]; pocketY[p++] = sy * cornerY[k];
+        }
+        pocketX[p] = sx * edgeX; pocketY[p++] = sideY[k];
+      }
+    }
+  }
+
+  // pots of ball b that pass every test, easiest first
+  public List<Candidate> candidates(int b) {
+    final List<Candidate> candidates = new ArrayList<Candidate>();
+    addCandidates(b, candidates);
+    sort(candidates);
+    return candidates;
+  }
+
+  public static void sort(List<Candidate> candidates) {
+    Collections.sort(candidates, new Comparator<Candidate>() {
+      public int compare(Candidate a, Candidate b) {
+        return Double.compare(b.ease, a.ease);
+      }
+    });
+  }
+
+  public void addCandidates(int b, List<Candidate> candidates) {
+    final int R = table.R;
+    final double cx = table.x[CUE], cy = table.y[CUE], ox = table.x[b], oy = table.y[b];
+    for (int p = 0; p < pocketX.length; p++) {
+      // target's lane, through the mouth
+      double ux = pocketX[p] - ox, uy = pocketY[p] - oy;
+      final double potDist = Math.sqrt(ux * ux + uy * uy);
+      if (potDist == 0) continue;
+      ux /= potDist; uy /= potDist;
+      if (table.isWallBetween(ox, oy, pocketX[p], pocketY[p])) continue;
+      if (!isLaneClear(ox, oy, pocketX[p], pocketY[p], b, CUE)) continue;
+
+      // ghost ball and the cue ball's lane to it
+      final double gx = ox - ux * 2 * R, gy = oy - uy * 2 * R;
+      if (table.isWallColliding(gx, gy) || table.isBorderColliding(gx, gy)) continue;
+      double vx = gx - cx, vy = gy - cy;
+      final double cueDist = Math.sqrt(vx * vx + vy * vy);
+      if (cueDist == 0) continue;
+      vx /= cueDist; vy /= cueDist;
+
+      final double cos = vx * ux + vy * uy;
+      final double cut = Math.acos(TableSimulation.clamp(cos));
+      if (cut > maxCutAngle) continue;
+      if (table.isWallBetween(cx, cy, gx, gy)) continue;
+      if (!isLaneClear(cx, cy, gx, gy, CUE, b)) continue;
+
+      // speed the target needs to reach the pocket, back through the
+      // contact to the speed the cue ball must leave with
+      final double atContact = TableSimulation.speedToRoll(potDist) / (TableSimulation.collisionFriction * cos);
+      final double needed = (atContact + TableSimulation.speedToRoll(cueDist) - TableSimulation.vThreshold) / Shot.cueMult;
+      if (needed > Shot.maxDrawback) continue;
+
+      final double ease = cos / (1 + (cueDist + potDist) / TableSimulation.HEIGHT);
+      for (double power : powers) {
+        final double drawback = Math.min(needed * power, Shot.maxDrawback);
+        candidates.add(new Candidate(b, p, cut, ease, new Shot(-vx, -vy, 0, 0, drawback)));
+        if (drawback == Shot.maxDrawback) break;
+      }
+    }
+  }
+
+  /*
+   * True if a ball rolling from (x0, y0) to (x1, y1) passes every ball on
+   * the table, bar the two ignored, without touching it.
+   */
+  public boolean isLaneClear(double x0, double y0, double x1, double y1, int ignore0, int ignore1) {
+    final double r2 = 4.0 * table.R * table.R;
+    for (int i = 0; i < table.size(); i++) {
+      if (i == ignore0 || i == ignore1 || table.isScored(i)) continue;
+      if (TableSimulation.segmentDistanceSq(table.x[i], table.y[i], x0, y0, x1, y1) < r2) return false;
+    }
+    return true;
+  }
+}
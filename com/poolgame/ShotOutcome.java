@@ -0,0 +1,74 @@
+package com.poolgame;
+
+/*
+ * What a shot did: the balls that dropped, which balls the cue ball ran
+ * into and where it ended up, and how the rollout ended. Slots refer to the
+ * table the shot was played on. A rolled-out shot also keeps where every
+ * ball ended up, so the table after it can be laid out again from a cached
+ * outcome; see restore().
+ */
+public class ShotOutcome {
+  public enum End {
+    // every ball stopped, or was certain to stop without touching anything
+    SETTLED,
+    // a Termination fired first
+    TERMINATED,
+    // still moving at the rollout's time limit
+    TIME_LIMIT
+  }
+
+  // in the order they dropped, the cue ball included
+  public final int[] pocketed;
+  // the first ball the cue ball touched in each step it touched one
+  public final int[] cueContacts;
+  public final double cueX, cueY;
+  public final End end;
+  // seconds of table time played out
+  public final double time;
+  // every ball's position when the rollout ended, by slot; null if not kept
+  public final double[] ballX, ballY;
+
+  public ShotOutcome(int[] pocketed, int[] cueContacts, double cueX, double cueY, End end, double time) {
+    this(pocketed, cueContacts, cueX, cueY, end, time, null, null);
+  }
+
+  public ShotOutcome(int[] pocketed, int[] cueContacts, double cueX, double cueY, End end, double time, double[] ballX, double[] ballY) {
+    this.pocketed = pocketed;
+    this.cueContacts = cueContacts;
+    this.cueX = cueX; this.cueY = cueY;
+    this.end = end;
+    this.time = time;
+    this.ballX = ballX; this.ballY = ballY;
+  }
+
+  public boolean hasPositions() {
+    return ballX != null;
+  }
+
+  /*
+   * Lays out on into the table the shot was played from, as this outcome
+   * left it: balls where they stopped and the pocketed ones scored. Only
+   * for settled outcomes with positions, where nothing is left moving.
+   */
+  public void restore(TableSimulation from, TableSimulation into) {
+    into.copyFrom(from);
+    into.clearPocketed();
+    for (int i = 0; i < into.size(); i++) {
+      into.x[i] = ballX[i]; into.y[i] = ballY[i];
+      into.vx[i] = 0; into.vy[i] = 0;
+      into.spinX[i] = 0; into.spinY[i] = 0;
+    }
+    for (int b : pocketed) into.setScored(b, true);
+  }
+
+  public boolean isPotted(int slot) {
+    for (int b : pocketed) {
+      if (b == slot) return true;
+    }
+    return false;
+  }
+
+  public boolean isScratch() {
+    return isPotted(TableSimulation.CUE);
+  }
+}
@@ -0,0 +1,422 @@
+package com.poolgame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The AI's shot search, without the game attached. It works on its own
+ * snapshot of the table and the rules, and plays every candidate shot out
+ * on a private copy, so candidates are independent and are fanned out over
+ * a ForkJoinPool. Nothing here touches the live game, so it can run on any
+ * thread.
+ *
+ * The search can be given a time budget and cancelled from another thread.
+ * While it runs, getBest() is the best shot found so far; a search that is
+ * stopped early returns that.
+ *
+ * Outcomes go through an OutcomeCache, shared between searches by default,
+ * so a shot already played out from the same position is not played again.
+ * From the opening rack, breaks are looked up in the BreakTable if there is
+ * one.
+ *
+ * A rollout stops as soon as its Termination says the outcome it is after is
+ * known, or once the balls left moving can only coast to a stop, so most
+ * shots skip the long slow tail of the roll.
+ */
+public class ShotSearch {
+  private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+  protected static final int CUE = TableSimulation.CUE;
+  // score of a rollout abandoned because the search was stopped
+  protected static final int ABANDONED = Integer.MIN_VALUE;
+  // dropping the 8-ball before it is time loses the game
+  protected static final int LOST = -100;
+  private static final double dt = 0.02;
+
+  protected final TableSimulation table;
+  protected final long[] tableKey;
+  protected final ShotGeometry geometry;
+  protected final boolean turn;
+  protected final Boolean turn0IsSolid;
+
+  // the 8-ball's slot once it is the only ball left to shoot at, else -1
+  public final int eightBall;
+
+  // null to always play shots out
+  public OutcomeCache cache = OutcomeCache.shared;
+  // seconds of table time a rollout may run before it is cut off
+  public double maxSimulatedTime = 30;
+
+  // where to look breaks up, and the cue spot this table breaks from or -1
+  private BreakTable breaks;
+  private int breakCell = -1;
+
+  // shots actually played out, not counting cache hits
+  private final AtomicLong rollouts = new AtomicLong();
+  // every search's, for the performance HUD
+  private static final Metrics.Counter allRollouts = Metrics.shared.counter("ai.rollouts");
+
+  private volatile boolean cancelled = false;
+  private volatile long deadline = Long.MAX_VALUE;
+
+  // best pot found so far and its place in the search order, and a plain
+  // shot to fall back on before there is one
+  private Shot bestSoFar = null, fallback = null;
+  private int bestSoFarScore = 0, bestSoFarOrder = Integer.MAX_VALUE;
+
+  // each worker plays its rollouts out on one reused copy
+  private final ThreadLocal<TableSimulation> scratch = new ThreadLocal<TableSimulation>() {
+    protected TableSimulation initialValue() {
+      return new TableSimulation(table.capacity(), table.R);
+    }
+  };
+
+  public ShotSearch(TableSimulation table, boolean turn, Boolean turn0IsSolid) {
+    this.table = new TableSimulation(table);
+    tableKey = OutcomeCache.tableKey(this.table);
+    geometry = new ShotGeometry(this.table);
+    this.turn = turn;
+    this.turn0IsSolid = turn0IsSolid;
+    eightBall = ballsLeft(this.table, turn0IsSolid) == 0 ? eightSlot(this.table) : -1;
+    setBreaks(BreakTable.shared());
+  }
+
+  public void setBreaks(BreakTable breaks) {
+    this.breaks = breaks;
+    breakCell = breaks != null ? breaks.cell(table) : -1;
+  }
+
+  // the best break in the break table, if this is a break and there is one
+  protected Shot bestBreak() {
+    return breakCell != -1 ? breaks.best(breakCell, this) : null;
+  }
+
+  /*
+   * Lists the pots on the player's balls (or the 8-ball once it is time)
+   * that ShotGeometry thinks possible, and plays them out easiest first, a
+   * batch at a time, until a batch has one that works; the best of that
+   * batch wins. With nothing to pot, falls back to a sweep for any shot
+   * that at least hits one of our balls.
+   */
+  public Shot findShot() {
+    fallback = straightAt(eightBall != -1 ? eightBall : firstTarget());
+    final Shot opening = bestBreak();
+    if (opening != null) return opening;
+    final List<ShotGeometry.Candidate> candidates = new ArrayList<ShotGeometry.Candidate>();
+    final int eight = eightBall == -1 ? eightSlot(table) : -1;
+    if (eightBall != -1) {
+      geometry.addCandidates(eightBall, candidates);
+    } else {
+      for (int b = 1; b < table.size(); b++) {
+        if (table.isScored(b)) continue;
+        if (turn0IsSolid != null && table.isStriped(b) != turn0IsSolid) continue;
+        geometry.addCandidates(b, candidates);
+      }
+    }
+    ShotGeometry.sort(candidates);
+
+    final int batch = Math.max(8, 2 * parallelism());
+    for (int from = 0; from < candidates.size(); from += batch) {
+      if (best(candidates.subList(from, Math.min(from + batch, candidates.size())), eight) != null || isStopped()) return getBest();
+    }
+
+    if (eightBall != -1) return safety(0.75);
+    return safety(0.9);
+  }
+
+  // searches for at most budgetMillis before settling for the best so far
+  public Shot findShot(long budgetMillis) {
+    deadline = System.nanoTime() + budgetMillis * 1000000;
+    return findShot();
+  }
+
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public boolean isStopped() {
+    return cancelled || System.nanoTime() > deadline;
+  }
+
+  public synchronized Shot getBest() {
+    return bestSoFar != null ? bestSoFar : fallback;
+  }
+
+  public long getRollouts() {
+    return rollouts.get();
+  }
+
+  private synchronized void offer(Shot shot, int score, int order) {
+    if (score > bestSoFarScore || (score == bestSoFarScore && score > 0 && order < bestSoFarOrder)) {
+      bestSoFar = shot; bestSoFarScore = score; bestSoFarOrder = order;
+    }
+  }
+
+  // first of our balls still on the table, or the 8-ball, or -1
+  protected int firstTarget() {
+    for (int b = 1; b < table.size(); b++) {
+      if (!table.isScored(b) && table.number(b) != 8 && isOurs(b)) return b;
+    }
+    return eightSlot(table);
+  }
+
+  /*
+   * Balls left on t in the group isOurs() means for this turn0IsSolid, the
+   * 8-ball aside; every ball but the 8 while the groups are open.
+   */
+  static int ballsLeft(TableSimulation t, Boolean turn0IsSolid) {
+    int n = 0;
+    for (int b = 1; b < t.size(); b++) {
+      if (t.isScored(b) || t.number(b) == 8) continue;
+      if (turn0IsSolid == null || t.isStriped(b) == turn0IsSolid) n++;
+    }
+    return n;
+  }
+
+  // the 8-ball's slot while it is on the table, or -1
+  static int eightSlot(TableSimulation t) {
+    for (int b = 1; b < t.size(); b++) {
+      if (!t.isScored(b) && t.number(b) == 8) return b;
+    }
+    return -1;
+  }
+
+  // straight at ball b, with no thought for where it goes
+  protected Shot straightAt(int b) {
+    double sx = 0, sy = 1;
+    if (b != -1) {
+      sx = table.x[CUE] - table.x[b]; sy = table.y[CUE] - table.y[b];
+      final double len = Math.sqrt(sx * sx + sy * sy);
+      if (len == 0) { sx = 0; sy = 1; }
+      else { sx /= len; sy /= len; }
+    }
+    return new Shot(sx, sy, 0, 0, Shot.maxDrawback * 0.9);
+  }
+
+  // the first angle in a sweep at which the cue ball runs into one of ours
+  Shot safety(double drawback) {
+    final List<Shot> shots = new ArrayList<Shot>();
+    for (double angle = 0; angle <= 12; angle = angle+0.22) {
+      shots.add(new Shot(Math.sin(angle), Math.cos(angle), 0, 0, Shot.maxDrawback * drawback));
+    }
+
+    final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    for (final Shot shot : shots) {
+      tasks.add(new Callable<Integer>() {
+        public Integer call() {
+          return firstContact(play(shot, hitsOurs));
+        }
+      });
+    }
+    final List<Integer> contacts = invokeAll(tasks);
+    for (int k = 0; k < shots.size(); k++) {
+      if (contacts.get(k) >= 0) return shots.get(k);
+    }
+    return isStopped() ? getBest() : shots.get(shots.size() - 1);
+  }
+
+  /*
+   * Highest scoring pot in the list, earliest on ties, or null. Each is
+   * played out only until its target drops, the cue ball does or the 8-ball
+   * (slot eight) goes down too soon.
+   */
+  Shot best(List<ShotGeometry.Candidate> candidates, int eight) {
+    final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    final int first = order;
+    order += candidates.size();
+    for (int k = 0; k < candidates.size(); k++) {
+      final ShotGeometry.Candidate c = candidates.get(k);
+      final Termination until = eight == -1 || eight == c.target
+        ? Termination.anyOf(Termination.potted(c.target), Termination.scratch())
+        : Termination.anyOf(Termination.potted(c.target), Termination.scratch(), Termination.potted(eight));
+      final int order = first + k;
+      tasks.add(new Callable<Integer>() {
+        public Integer call() {
+          final int score = score(play(c.shot, until));
+          offer(c.shot, score, order);
+          return score;
+        }
+      });
+    }
+    final List<Integer> scores = invokeAll(tasks);
+    Shot best = null; int bestScore = 0;
+    for (int k = 0; k < candidates.size(); k++) {
+      if (scores.get(k) > bestScore) {
+        best = candidates.get(k).shot; bestScore = scores.get(k);
+      }
+    }
+    return best;
+  }
+
+  // candidates handed out so far, for breaking ties in offer()
+  private int order = 0;
+
+  /*
+   * Each of our balls potted counts +1 and each of theirs -1; on an open
+   * table the first ball down decides whose are whose. A scratch costs 1 and
+   * the 8-ball going down before it is time, or with the cue ball, loses
+   * outright, as in EndgameSolver and the game itself.
+   */
+  public int score(ShotOutcome outcome) {
+    if (outcome == null) return ABANDONED;
+    if (eightBall != -1 && outcome.isPotted(eightBall) && outcome.isScratch()) return LOST;
+
+    Boolean solid = turn0IsSolid;
+    int score = 0;
+    for (int b : outcome.pocketed) {
+      if (b == CUE) score -= 1;
+      else if (b == eightBall) score += 1;
+      else if (eightBall == -1 && table.number(b) == 8) return LOST;
+      else {
+        if (solid == null) solid = turn == table.isStriped(b);
+        score += solid == (turn == table.isStriped(b)) ? 1 : -1;
+      }
+    }
+    return score;
+  }
+
+  // the first of our balls the cue ball touches, or -1
+  public int firstContact(ShotOutcome outcome) {
+    if (outcome == null) return ABANDONED;
+    for (int b : outcome.cueContacts) {
+      if (isOurs(b)) return b;
+    }
+    return -1;
+  }
+
+  protected boolean isOurs(int b) {
+    return turn0IsSolid == null || table.isStriped(b) == turn0IsSolid;
+  }
+
+  // ends a safety's rollout once the cue ball has found one of ours
+  private final Termination hitsOurs = new Termination() {
+    public boolean isDone(TableSimulation t) {
+      final int contact = t.getCueContact();
+      return contact != -1 && isOurs(contact);
+    }
+  };
+
+  /*
+   * Plays the shot out on this worker's copy of the table, unless the cache
+   * has it, until the balls settle, until (which may be null) is done or
+   * maxSimulatedTime runs out. Only settled outcomes are cached, since they
+   * hold everything any termination could want. Null if the search was
+   * stopped first.
+   */
+  public ShotOutcome play(Shot shot, Termination until) {
+    if (breakCell != -1) {
+      final ShotOutcome outcome = breaks.outcome(breakCell, shot);
+      if (outcome != null) return outcome;
+    }
+    final OutcomeCache cache = this.cache;
+    final OutcomeCache.Key key = cache != null ? OutcomeCache.key(tableKey, shot) : null;
+    if (key != null) {
+      final ShotOutcome outcome = cache.get(key);
+      if (outcome != null) return outcome;
+    }
+    if (isStopped()) return null;
+
+    final ShotOutcome outcome = playOut(rollout(shot), until);
+    if (outcome != null && key != null && outcome.end == ShotOutcome.End.SETTLED) cache.put(key, outcome);
+    return outcome;
+  }
+
+  // steps a table the shot has been applied to, leaving it where it ends
+  protected ShotOutcome playOut(TableSimulation t, Termination until) {
+    rollouts.incrementAndGet();
+    allRollouts.increment();
+    int[] contacts = new int[4];
+    int contactCount = 0;
+    ShotOutcome.End end;
+    int steps = 0;
+    while (true) {
+      if (++steps % 64 == 0 && isStopped()) return null;
+      final boolean allStopped = t.step(dt);
+      final int contact = t.getCueContact();
+      if (contact != -1) {
+        if (contactCount == contacts.length) contacts = Arrays.copyOf(contacts, contactCount * 2);
+        contacts[contactCount++] = contact;
+      }
+      if (until != null && until.isDone(t)) { end = ShotOutcome.End.TERMINATED; break; }
+      if (allStopped || t.coast(dt)) { end = ShotOutcome.End.SETTLED; break; }
+      if (steps * dt >= maxSimulatedTime) { end = ShotOutcome.End.TIME_LIMIT; break; }
+    }
+
+    final int[] pocketed = new int[t.pocketedCount()];
+    for (int k = 0; k < pocketed.length; k++) pocketed[k] = t.pocketed(k);
+    return new ShotOutcome(pocketed, Arrays.copyOf(contacts, contactCount), t.x[CUE], t.y[CUE], end, steps * dt,
+      Arrays.copyOf(t.x, t.size()), Arrays.copyOf(t.y, t.size()));
+  }
+
+  /*
+   * Plays the shot from the table from, whose tableKey is fromKey, until
+   * the balls settle, leaving into as the shot left the table; for searches
+   * that look on past the shot. Goes through the cache like play(): a
+   * cached outcome is laid out on into rather than played again. Null if
+   * the search was stopped first.
+   */
+  protected ShotOutcome playFrom(TableSimulation from, long[] fromKey, Shot shot, TableSimulation into) {
+    final OutcomeCache cache = this.cache;
+    final OutcomeCache.Key key = cache != null ? OutcomeCache.key(fromKey, shot) : null;
+    if (key != null) {
+      final ShotOutcome outcome = cache.get(key);
+      if (outcome != null && outcome.hasPositions()) {
+        outcome.restore(from, into);
+        return outcome;
+      }
+    }
+    if (isStopped()) return null;
+
+    into.copyFrom(from);
+    into.clearPocketed();
+    shot.apply(into);
+    final ShotOutcome outcome = playOut(into, null);
+    if (outcome != null && key != null && outcome.end == ShotOutcome.End.SETTLED) cache.put(key, outcome);
+    return outcome;
+  }
+
+  // this worker's reusable copy of the table
+  protected TableSimulation scratch() {
+    return scratch.get();
+  }
+
+  // this worker's copy of the table, with the shot applied
+  protected TableSimulation rollout(Shot shot) {
+    final TableSimulation t = scratch.get();
+    t.copyFrom(table);
+    t.clearPocketed();
+    shot.apply(t);
+    return t;
+  }
+
+  public static int parallelism() {
+    return pool.getParallelism();
+  }
+
+  // the pool rollouts run on, for other work that plays shots out
+  static ForkJoinPool pool() {
+    return pool;
+  }
+
+  protected static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+    final List<T> results = new ArrayList<T>(tasks.size());
+    try {
+      for (Future<T> future : pool.invokeAll(tasks)) results.add(future.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    return results;
+  }
+}
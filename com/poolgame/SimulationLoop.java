@@ -0,0 +1,102 @@
+package com.poolgame;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Runs a fixed-timestep simulation on its own thread. Real time is collected
+ * in an accumulator and spent in whole ticks, so a late wake-up is caught up
+ * on instead of slowing the game down. If the machine cannot keep up at all,
+ * at most maxCatchUpTicks are run per wake-up and the rest of the backlog is
+ * dropped rather than spiralling.
+ */
+public class SimulationLoop implements Runnable {
+  public interface Tick {
+    // returns false to stop the loop after this tick
+    boolean tick(double dt);
+  }
+
+  private final Tick tick;
+  private long tickNanos;
+  private int maxCatchUpTicks = 5;
+
+  private Thread thread = null;
+  private volatile boolean running = false;
+  private long last, accumulator;
+
+  public SimulationLoop(Tick tick, int ticksPerSecond) {
+    this.tick = tick;
+    setTickRate(ticksPerSecond);
+  }
+
+  public synchronized void setTickRate(int ticksPerSecond) {
+    tickNanos = 1000000000L / ticksPerSecond;
+  }
+
+  public synchronized void setMaxCatchUpTicks(int maxCatchUpTicks) {
+    this.maxCatchUpTicks = Math.max(1, maxCatchUpTicks);
+  }
+
+  public long getTickNanos() {
+    return tickNanos;
+  }
+
+  public double getTickSeconds() {
+    return tickNanos / 1e9;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  public synchronized void start() {
+    if (running) return;
+    running = true;
+    last = System.nanoTime();
+    accumulator = 0;
+    if (thread == null) {
+      thread = new Thread(this, "Simulation");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    notifyAll();
+  }
+
+  /*
+   * Stops ticking. Because ticks run while holding this object's lock, once
+   * stop() returns no tick is in progress and the simulation may be touched
+   * from the calling thread.
+   */
+  public synchronized void stop() {
+    running = false;
+  }
+
+  public void run() {
+    while (true) {
+      long wait;
+      synchronized (this) {
+        try {
+          while (!running) wait();
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        final long now = System.nanoTime();
+        accumulator += now - last;
+        last = now;
+
+        final double dt = getTickSeconds();
+        int ticks = 0;
+        while (running && accumulator >= tickNanos) {
+          if (ticks++ == maxCatchUpTicks) {
+            accumulator %= tickNanos; // too far behind, drop the backlog
+            break;
+          }
+          accumulator -= tickNanos;
+          if (!tick.tick(dt)) running = false;
+        }
+        wait = tickNanos - accumulator;
+      }
+      if (wait > 0) LockSupport.parkNanos(wait);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package com.poolgame;
+
+import java.util.Random;
+
+/*
+ * Tables with hundreds or thousands of balls, for the sandbox stress mode
+ * and for checking that a physics tick stays roughly linear in ball count.
+ *
+ *   java -cp bin com.poolgame.StressTest [ticks]
+ */
+public class StressTest {
+  public static void main(String[] args) {
+    final int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    final double dt = 0.02;
+
+    System.out.println("balls\tR\tus/tick\tns/ball/tick");
+    for (int n : new int[] {16, 125, 250, 500, 1000, 2000, 4000}) {
+      // first pass warms up the JIT
+      for (int pass = 0; pass < 2; pass++) {
+        final TableSimulation table = scatter(n, 1);
+        long elapsed = 0;
+        for (int t = 0; t < ticks; t++) {
+          // keep everything moving so every tick does real work
+          if (t % 50 == 0) kick(table, new Random(t));
+          final long start = System.nanoTime();
+          table.step(dt);
+          elapsed += System.nanoTime() - start;
+        }
+        if (pass == 1) {
+          final double perTick = elapsed / 1000.0 / ticks;
+          System.out.printf("%d\t%d\t%.1f\t%.1f%n", n, table.R, perTick, perTick * 1000 / n);
+        }
+      }
+    }
+  }
+
+  // ball radius that fills roughly a quarter of the felt with n balls
+  public static int radiusFor(int n) {
+    return Math.max(4, Math.min(TableSimulation.defaultR, (int)Math.sqrt(0.25 * 1200 * 2400 / (Math.PI * n))));
+  }
+
+  /*
+   * A table of n object balls plus the cue ball at random, non-overlapping
+   * spots. Gives up on a ball after a few hundred tries, so very crowded
+   * tables may come out a little short.
+   */
+  public static TableSimulation scatter(int n, long seed) {
+    final Random random = new Random(seed);
+    final int R = radiusFor(n);
+    final TableSimulation table = new TableSimulation(n + 1, R);
+    table.add(-1, false, 0, 600);
+    final double w = 600 - 3*R, h = 1200 - 3*R;
+    for (int i = 1; i <= n; i++) {
+      final int number = (i - 1) % 15 + 1;
+      for (int attempt = 0; attempt < 500; attempt++) {
+        final double x = (random.nextDouble() * 2 - 1) * w, y = (random.nextDouble() * 2 - 1) * h;
+        if (table.getBallColliding(x, y, -1) == -1) {
+          table.add(number, number > 8, x, y);
+          break;
+        }
+      }
+    }
+    return table;
+  }
+
+  public static void kick(TableSimulation table, Random random) {
+    for (int i = 0; i < table.size(); i++) {
+      if (table.isScored(i)) continue;
+      final double angle = random.nextDouble() * 2 * Math.PI, speed = 200 + random.nextDouble() * 1800;
+      table.vx[i] = Math.cos(angle) * speed;
+      table.vy[i] = Math.sin(angle) * speed;
+      table.wake(i);
+    }
+  }
+}
@@ -0,0 +1,845 @@
+package com.poolgame;
+
+/*
+ * Headless physics for the 1200x2400 table. Nothing in here touches AWT or
+ * Swing, so the game, the AI and a server without a display can all step
+ * the same balls. The step path does not allocate.
+ *
+ * Ball state is kept as parallel primitive arrays indexed by slot, with the
+ * cue ball always in slot 0. Scored balls keep their slot and are flagged in
+ * a bitset, so copying a table is a handful of System.arraycopy calls.
+ *
+ * Balls at rest are asleep and cost nothing to step. Only the awake balls
+ * are kept in a list, and a sleeping ball wakes when something runs into
+ * it. Code that sets a resting ball moving by writing vx/vy directly must
+ * call wake() afterwards.
+ */
+public class TableSimulation {
+  public static final int WIDTH = 1200, HEIGHT = 2400;
+  public static final int CUE = 0;
+  public static final int defaultR = 40;
+  public static final double vThreshold = 10;
+  public static final double spinRange = 1.5, spinMult = 30;
+  public static final double groundFriction = 0.5;
+  public static final double bounceFriction = 0.7;
+  public static final double collisionFriction = 0.98;
+
+  public final int R;
+
+  // hot state
+  public final double[] x, y, vx, vy, spinX, spinY, rotX, rotY;
+  private final long[] scored;
+  private int count = 0;
+
+  // per-ball metadata, never read while stepping
+  private final int[] number;
+  private final boolean[] striped;
+
+  // balls that dropped since the last clearPocketed(), in order
+  private final int[] pocketed;
+  private int pocketedCount = 0;
+
+  private int cueContact = -1;
+
+  // what the last step() did: contacts resolved and ball pairs tested
+  private int stepContacts = 0, stepPairChecks = 0;
+  private boolean stepCapped = false;
+
+  // steps on any table that hit the contact limit, for the HUD
+  private static final Metrics.Counter cappedSteps = Metrics.shared.counter("sim.capped");
+
+  // awake balls, unordered, and each ball's place in that list or -1
+  private final int[] active, activeIndex;
+  private int activeCount = 0;
+
+  // per-ball clock, next contact and a counter bumped whenever it changes
+  // course, used by step()
+  private final double[] time, nextTime;
+  private final int[] nextPartner, nextStamp, stamp;
+  private final EventQueue queue;
+
+  // broadphase, built on first use: the awake balls, rebuilt every step,
+  // and the sleeping ones, only rebuilt when a ball falls asleep
+  private BallGrid grid, restGrid;
+  private boolean gridValid = false, restValid = false;
+
+  // cushion slabs, see findWallEvent
+  private final double[] wallMinX, wallMaxX, wallMinY, wallMaxY;
+
+  public TableSimulation(int capacity) {
+    this(capacity, defaultR);
+  }
+
+  public TableSimulation(int capacity, int R) {
+    this.R = R;
+    x = new double[capacity]; y = new double[capacity];
+    vx = new double[capacity]; vy = new double[capacity];
+    spinX = new double[capacity]; spinY = new double[capacity];
+    rotX = new double[capacity]; rotY = new double[capacity];
+    scored = new long[(capacity + 63) >>> 6];
+    number = new int[capacity];
+    striped = new boolean[capacity];
+    pocketed = new int[capacity];
+    time = new double[capacity]; nextTime = new double[capacity];
+    nextPartner = new int[capacity]; nextStamp = new int[capacity]; stamp = new int[capacity];
+    queue = new EventQueue(capacity);
+    active = new int[capacity]; activeIndex = new int[capacity];
+
+    final double inf = Double.POSITIVE_INFINITY;
+    final double side = 600-R-R, end = 1200-R-R;
+    final double sideLen = 1200-R*2.5, endLen = 600-R*2.5;
+    wallMinX = new double[] {side, side, -inf, -inf, -endLen, -endLen};
+    wallMaxX = new double[] {inf, inf, -side, -side, endLen, endLen};
+    wallMinY = new double[] {R, -sideLen, R, -sideLen, end, -inf};
+    wallMaxY = new double[] {sideLen, -R, sideLen, -R, inf, -end};
+  }
+
+  public TableSimulation(TableSimulation t) {
+    this(t.capacity(), t.R);
+    copyFrom(t);
+  }
+
+  public void copyFrom(TableSimulation t) {
+    if (t.count > capacity() || t.R != R) throw new IllegalArgumentException("Table does not fit");
+    final int n = t.count;
+    System.arraycopy(t.x, 0, x, 0, n); System.arraycopy(t.y, 0, y, 0, n);
+    System.arraycopy(t.vx, 0, vx, 0, n); System.arraycopy(t.vy, 0, vy, 0, n);
+    System.arraycopy(t.spinX, 0, spinX, 0, n); System.arraycopy(t.spinY, 0, spinY, 0, n);
+    System.arraycopy(t.rotX, 0, rotX, 0, n); System.arraycopy(t.rotY, 0, rotY, 0, n);
+    // only the words holding balls; the tables' capacities may differ
+    final int words = (n + 63) >>> 6;
+    System.arraycopy(t.scored, 0, scored, 0, words);
+    for (int w = words; w < scored.length; w++) scored[w] = 0;
+    System.arraycopy(t.number, 0, number, 0, n);
+    System.arraycopy(t.striped, 0, striped, 0, n);
+    System.arraycopy(t.pocketed, 0, pocketed, 0, t.pocketedCount);
+    pocketedCount = t.pocketedCount;
+    System.arraycopy(t.active, 0, active, 0, t.activeCount);
+    System.arraycopy(t.activeIndex, 0, activeIndex, 0, n);
+    activeCount = t.activeCount;
+    count = n;
+    gridValid = false; restValid = false;
+  }
+
+  public int add(int number, boolean isStriped, double x, double y) {
+    final int i = count++;
+    this.number[i] = number; striped[i] = isStriped;
+    this.x[i] = x; this.y[i] = y;
+    vx[i] = 0; vy[i] = 0; spinX[i] = 0; spinY[i] = 0; rotX[i] = 0; rotY[i] = 0;
+    setScored(i, false);
+    activeIndex[i] = -1;
+    if (restValid) restGrid.insert(i, x - R, y - R, x + R, y + R);
+    return i;
+  }
+
+  public void clear() {
+    count = 0;
+    activeCount = 0;
+    gridValid = false; restValid = false;
+    pocketedCount = 0;
+    for (int w = 0; w < scored.length; w++) scored[w] = 0;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int capacity() {
+    return x.length;
+  }
+
+  public int number(int i) {
+    return number[i];
+  }
+
+  public boolean isStriped(int i) {
+    return striped[i];
+  }
+
+  public boolean isScored(int i) {
+    return (scored[i >>> 6] & (1L << i)) != 0;
+  }
+
+  public void setScored(int i, boolean s) {
+    if (s) scored[i >>> 6] |= 1L << i;
+    else scored[i >>> 6] &= ~(1L << i);
+  }
+
+  public int pocketedCount() {
+    return pocketedCount;
+  }
+
+  public int pocketed(int k) {
+    return pocketed[k];
+  }
+
+  public void clearPocketed() {
+    pocketedCount = 0;
+  }
+
+  public boolean isMoving(int i) {
+    return vx[i] != 0 || vy[i] != 0;
+  }
+
+  public boolean isAwake(int i) {
+    return activeIndex[i] != -1;
+  }
+
+  public int awakeCount() {
+    return activeCount;
+  }
+
+  // call after setting a resting ball moving by hand
+  public void wake(int i) {
+    if (activeIndex[i] != -1) return;
+    activate(i);
+    gridValid = false;
+  }
+
+  private void activate(int i) {
+    activeIndex[i] = activeCount;
+    active[activeCount++] = i;
+  }
+
+  // whatever spin a ball has left when it comes to rest is dropped
+  private void sleep(int i) {
+    final int k = activeIndex[i], last = active[--activeCount];
+    active[k] = last; activeIndex[last] = k;
+    activeIndex[i] = -1;
+    spinX[i] = 0; spinY[i] = 0;
+    restValid = false;
+  }
+
+  // slot holding the ball with this number, or -1
+  public int indexOf(int number) {
+    for (int i = 0; i < count; i++) {
+      if (this.number[i] == number) return i;
+    }
+    return -1;
+  }
+
+  /*
+   * Advances every ball by dt and returns true once nothing is moving.
+   * Scored balls are brought to rest.
+   *
+   * Balls travel in straight lines between contacts, so instead of moving
+   * them a unit at a time the time of the next ball-ball or ball-cushion
+   * contact is solved for directly. Each ball keeps its own clock and its
+   * earliest predicted contact in a queue; a contact only touches the two
+   * balls involved and their grid neighbours, so a tick costs about the
+   * same per ball however many balls are on the table. Sleeping balls are
+   * only looked at when an awake ball's path crosses them.
+   */
+  public boolean step(double dt) {
+    cueContact = -1;
+    stepContacts = 0; stepPairChecks = 0;
+    if (activeCount == 0) return true;
+
+    restGrid();
+    final BallGrid grid = grid();
+    grid.clear();
+    for (int k = 0; k < activeCount; k++) {
+      final int i = active[k];
+      if (isScored(i)) continue;
+      time[i] = 0;
+      register(i, dt);
+    }
+    gridValid = true;
+
+    queue.clear();
+    for (int k = 0; k < activeCount; k++) {
+      final int i = active[k];
+      if (!isScored(i) && isMoving(i)) predict(i, dt);
+    }
+
+    int events = 0;
+    final int maxEvents = 64 * Math.max(count, 1);
+    // how far the balls are moved this step
+    double end = dt;
+    stepCapped = false;
+    while (!queue.isEmpty()) {
+      final int a = queue.peek();
+      final int b = nextPartner[a];
+      final double now = nextTime[a];
+
+      // a jammed cluster can keep producing contacts at the same instant;
+      // moving everything on to dt would then run balls through each other,
+      // so the step ends where the contacts stopped being resolved and the
+      // next one picks up from there
+      if (++events > maxEvents) {
+        end = now;
+        stepCapped = true;
+        cappedSteps.increment();
+        break;
+      }
+      moveTo(a, now);
+
+      if (b >= 0 && nextStamp[a] != stamp[b]) {
+        // b has changed course since this contact was predicted
+        predict(a, dt);
+        continue;
+      }
+
+      if (b >= 0) {
+        if (activeIndex[b] == -1) activate(b);
+        moveTo(b, now);
+        collide(a, b);
+        stamp[b]++;
+        if (cueContact == -1) {
+          if (a == CUE) cueContact = b;
+          else if (b == CUE) cueContact = a;
+        }
+      } else if (b == WALL_X) {
+        vx[a] *= -bounceFriction;
+        vy[a] *= bounceFriction;
+        addSpin(a);
+      } else {
+        vx[a] *= bounceFriction;
+        vy[a] *= -bounceFriction;
+        addSpin(a);
+      }
+      stamp[a]++;
+
+      register(a, dt);
+      predict(a, dt);
+      if (b >= 0) {
+        register(b, dt);
+        predict(b, dt);
+      }
+    }
+
+    // backwards, so balls falling asleep can be swapped out of the list
+    for (int k = activeCount - 1; k >= 0; k--) {
+      final int i = active[k];
+      if (!isScored(i)) {
+        moveTo(i, end);
+        settle(i, dt);
+        fixVelocities(i);
+      }
+      if (isScored(i)) { vx[i] = 0; vy[i] = 0; }
+      if (!isMoving(i)) sleep(i);
+    }
+    stepContacts = events;
+    return activeCount == 0;
+  }
+
+  public int getStepContacts() {
+    return stepContacts;
+  }
+
+  public int getStepPairChecks() {
+    return stepPairChecks;
+  }
+
+  // whether the last step hit its contact limit and stopped short of dt
+  public boolean wasStepCapped() {
+    return stepCapped;
+  }
+
+  // the first ball the cue ran into during the last step, or -1
+  public int getCueContact() {
+    return cueContact;
+  }
+
+  private static final int NONE = -1, WALL_X = -2, WALL_Y = -3;
+
+  private void moveTo(int i, double t) {
+    x[i] += vx[i] * (t - time[i]);
+    y[i] += vy[i] * (t - time[i]);
+    time[i] = t;
+  }
+
+  // enters the box i sweeps from its own clock to the end of the tick
+  private void register(int i, double dt) {
+    final double x1 = x[i] + vx[i] * (dt - time[i]), y1 = y[i] + vy[i] * (dt - time[i]);
+    grid().insert(i, Math.min(x[i], x1) - R, Math.min(y[i], y1) - R, Math.max(x[i], x1) + R, Math.max(y[i], y1) + R);
+  }
+
+  /*
+   * Finds ball i's earliest contact before the end of the tick, looking only
+   * at balls sharing a grid cell with its path, and queues it. nextPartner
+   * is the other ball, or WALL_X/WALL_Y for a cushion face normal to x or y.
+   */
+  private void predict(int i, double dt) {
+    final double now = time[i];
+    best = dt; bestPartner = NONE;
+
+    if (isMoving(i)) predictWall(i, dt - now);
+
+    final double x1 = x[i] + vx[i] * (dt - now), y1 = y[i] + vy[i] * (dt - now);
+    final double minX = Math.min(x[i], x1) - R, maxX = Math.max(x[i], x1) + R;
+    final double minY = Math.min(y[i], y1) - R, maxY = Math.max(y[i], y1) + R;
+    predictIn(grid(), false, i, now, minX, minY, maxX, maxY);
+    if (isMoving(i)) predictIn(restGrid(), true, i, now, minX, minY, maxX, maxY);
+
+    nextTime[i] = best; nextPartner[i] = bestPartner;
+    nextStamp[i] = bestPartner >= 0 ? stamp[bestPartner] : 0;
+    if (bestPartner == NONE) queue.remove(i);
+    else queue.set(i, best);
+  }
+
+  // per-step friction, worked out again only when dt changes
+  private double decayDt = Double.NaN, velocityDecay, spinDecay;
+
+  // scratch for predict
+  private double best;
+  private int bestPartner;
+
+  // the awake balls in the grid, or the sleeping ones in the rest grid
+  private void predictIn(BallGrid grid, boolean sleeping, int i, double now, double minX, double minY, double maxX, double maxY) {
+    final double r2 = 4.0 * R * R;
+    final int c0 = grid.col(minX), c1 = grid.col(maxX);
+    final int r0 = grid.row(minY), r1 = grid.row(maxY);
+    for (int r = r0; r <= r1; r++) {
+      for (int c = c0; c <= c1; c++) {
+        for (int e = grid.head(c, r); e != -1; e = grid.next(e)) {
+          final int j = grid.ball(e);
+          if (j == i || isScored(j) || (activeIndex[j] == -1) != sleeping || (!isMoving(i) && !isMoving(j))) continue;
+          stepPairChecks++;
+          final double dx = x[j] + vx[j] * (now - time[j]) - x[i];
+          final double dy = y[j] + vy[j] * (now - time[j]) - y[i];
+          final double wx = vx[j] - vx[i], wy = vy[j] - vy[i];
+          final double b = dx * wx + dy * wy;
+          if (b >= 0) continue; // separating
+          final double cc = dx * dx + dy * dy - r2;
+          double toi;
+          if (cc <= 0) {
+            toi = 0; // already touching and closing
+          } else {
+            final double a = wx * wx + wy * wy;
+            final double disc = b * b - a * cc;
+            if (disc < 0) continue;
+            toi = (-b - Math.sqrt(disc)) / a;
+          }
+          if (now + toi < best) {
+            best = now + toi; bestPartner = j;
+          }
+        }
+      }
+    }
+  }
+
+  // the next cushion the ball enters, see wallEntry()
+  private void predictWall(int i, double horizon) {
+    // most of the time the ball cannot reach any cushion this step
+    final double x1 = x[i] + vx[i] * horizon, y1 = y[i] + vy[i] * horizon;
+    if (Math.max(Math.abs(x[i]), Math.abs(x1)) <= 600-R-R && Math.max(Math.abs(y[i]), Math.abs(y1)) <= 1200-R-R) return;
+
+    final WallEntry entry = wallEntry(x[i], y[i], vx[i], vy[i], best - time[i]);
+    if (entry != null) {
+      best = time[i] + entry.time; bestPartner = entry.xFace ? WALL_X : WALL_Y;
+    }
+  }
+
+  /*
+   * The cushions are the same axis-aligned slabs isWallColliding() tests,
+   * open towards the rail. A ball hits one when it enters the slab, and the
+   * face it enters through decides which velocity component flips. Starting
+   * inside a slab, or on a face and leaving it as after a bounce, is no hit,
+   * and neither is clipping a corner; all to within WALL_EPSILON of
+   * distance. The stepper, cast() and isWallBetween() all go through here.
+   */
+  static final class WallEntry {
+    // when the ball gets there, in whatever unit (dx, dy) is per
+    final double time;
+    // through a face normal to x, else to y
+    final boolean xFace;
+
+    WallEntry(double time, boolean xFace) {
+      this.time = time; this.xFace = xFace;
+    }
+  }
+
+  private static final double WALL_EPSILON = 1e-6;
+
+  // the first slab a ball at (x0, y0) moving along (dx, dy) enters before limit, or null
+  WallEntry wallEntry(double x0, double y0, double dx, double dy, double limit) {
+    final double speed = Math.sqrt(dx * dx + dy * dy);
+    if (speed == 0) return null;
+    final double tolerance = WALL_EPSILON / speed;
+    double first = limit;
+    boolean xFace = false, found = false;
+    for (int w = 0; w < wallMinX.length; w++) {
+      double tx0, tx1, ty0, ty1;
+      if (dx == 0) {
+        if (x0 <= wallMinX[w] || x0 >= wallMaxX[w]) continue;
+        tx0 = Double.NEGATIVE_INFINITY; tx1 = Double.POSITIVE_INFINITY;
+      } else {
+        final double a = (wallMinX[w] - x0) / dx, b = (wallMaxX[w] - x0) / dx;
+        tx0 = Math.min(a, b); tx1 = Math.max(a, b);
+      }
+      if (dy == 0) {
+        if (y0 <= wallMinY[w] || y0 >= wallMaxY[w]) continue;
+        ty0 = Double.NEGATIVE_INFINITY; ty1 = Double.POSITIVE_INFINITY;
+      } else {
+        final double a = (wallMinY[w] - y0) / dy, b = (wallMaxY[w] - y0) / dy;
+        ty0 = Math.min(a, b); ty1 = Math.max(a, b);
+      }
+      final double enter = Math.max(tx0, ty0), exit = Math.min(tx1, ty1);
+      if (enter < -tolerance || exit - enter <= tolerance) continue;
+      final double t = Math.max(enter, 0);
+      if (t < first) {
+        first = t; xFace = tx0 > ty0; found = true;
+      }
+    }
+    return found ? new WallEntry(first, xFace) : null;
+  }
+
+  // spin, rotation, friction and pockets, applied once per step
+  void settle(int b, double dt) {
+    final double vToSpinFactor = 0.0002;
+    spinX[b] += vx[b] * vToSpinFactor;
+    spinY[b] += vy[b] * vToSpinFactor;
+
+    rotX[b] = overflow(rotX[b] + spinX[b], -R*spinRange, R*spinRange);
+    rotY[b] = overflow(rotY[b] + spinY[b], -R*spinRange, R*spinRange);
+
+    applyFriction(b, dt);
+
+    if (isBorderColliding(x[b], y[b])) {
+      setScored(b, true);
+      if (pocketedCount < pocketed.length) pocketed[pocketedCount++] = b;
+    }
+  }
+
+  public void fixVelocities(int i) {
+    if (Math.abs(vx[i]) < vThreshold) vx[i] = 0;
+    if (Math.abs(vy[i]) < vThreshold) vy[i] = 0;
+  }
+
+  void addSpin(int i) {
+    final double mag = Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i]);
+    vx[i] += spinX[i] * spinMult;
+    vy[i] += spinY[i] * spinMult;
+    double newMag = Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i]);
+    if (newMag > mag) {
+      vx[i] *= (mag / newMag);
+      vy[i] *= (mag / newMag);
+    }
+
+    spinX[i] *= bounceFriction;
+    spinY[i] *= bounceFriction;
+  }
+
+  /*
+   * Friction is exponential decay, v(t) = v0 * groundFriction^t, so one step
+   * always scales by the same factor. Steps are nearly always the same
+   * length, so the factors are cached instead of calling Math.pow per ball.
+   */
+  void applyFriction(int i, double dt) {
+    cacheDecay(dt);
+    vx[i] *= velocityDecay;
+    vy[i] *= velocityDecay;
+    spinX[i] *= spinDecay;
+    spinY[i] *= spinDecay;
+  }
+
+  private void cacheDecay(double dt) {
+    if (dt == decayDt) return;
+    decayDt = dt;
+    velocityDecay = Math.pow(groundFriction, dt);
+    spinDecay = Math.pow(groundFriction/2, dt);
+  }
+
+  /*
+   * Ends a shot early when nothing left can matter: if no awake ball can
+   * reach a cushion, a pocket or another ball before friction stops it,
+   * puts every one where stepping by dt would leave it, stops them and
+   * returns true. Rotation is left as it is.
+   *
+   * With the same decay for both components, a ball rolls straight until
+   * its smaller component drops under vThreshold, then on along the other
+   * axis, so each path is two segments worked out from the geometric sum.
+   */
+  public boolean coast(double dt) {
+    if (activeCount == 0) return true;
+    cacheDecay(dt);
+    if (coastX.length < 2 * activeCount) {
+      coastX = new double[2 * capacity()]; coastY = new double[2 * capacity()];
+    }
+
+    final double reach = 2.0 * R;
+    for (int k = 0; k < activeCount; k++) {
+      final int i = active[k];
+      if (isScored(i)) return false;
+      final int mx = stepsToStop(vx[i]), my = stepsToStop(vy[i]), m = Math.min(mx, my);
+      final double x1 = x[i] + rolled(vx[i], m, dt), y1 = y[i] + rolled(vy[i], m, dt);
+      final double x2 = x[i] + rolled(vx[i], mx, dt), y2 = y[i] + rolled(vy[i], my, dt);
+      if (isBorderColliding(x2, y2) || isWallBetween(x[i], y[i], x1, y1) || isWallBetween(x1, y1, x2, y2)) return false;
+
+      for (int j = 0; j < count; j++) {
+        if (j == i || isScored(j) || activeIndex[j] != -1) continue;
+        if (segmentDistanceSq(x[j], y[j], x[i], y[i], x1, y1) < reach * reach) return false;
+        if (segmentDistanceSq(x[j], y[j], x1, y1, x2, y2) < reach * reach) return false;
+      }
+      coastX[2*k] = x1; coastY[2*k] = y1; coastX[2*k+1] = x2; coastY[2*k+1] = y2;
+    }
+
+    // awake balls must stay clear of each other's whole path
+    for (int k = 0; k < activeCount; k++) {
+      final int i = active[k];
+      for (int l = k + 1; l < activeCount; l++) {
+        final int j = active[l];
+        if (pathsDistanceSq(x[i], y[i], 2*k, x[j], y[j], 2*l) < reach * reach) return false;
+      }
+    }
+
+    for (int k = activeCount - 1; k >= 0; k--) {
+      final int i = active[k];
+      x[i] = coastX[2*k+1]; y[i] = coastY[2*k+1];
+      vx[i] = 0; vy[i] = 0;
+      sleep(i);
+    }
+    gridValid = false;
+    return true;
+  }
+
+  // corner and end of each awake ball's coast path, by place in the list
+  private double[] coastX = new double[0], coastY = new double[0];
+
+  // steps a velocity component moves for before fixVelocities zeroes it
+  private int stepsToStop(double v) {
+    v = Math.abs(v);
+    if (v < vThreshold) return 0;
+    return 1 + (int)Math.floor(Math.log(vThreshold / v) / Math.log(velocityDecay));
+  }
+
+  // distance covered over the first m steps starting at speed v
+  private double rolled(double v, int m, double dt) {
+    return v * dt * (1 - Math.pow(velocityDecay, m)) / (1 - velocityDecay);
+  }
+
+  private double pathsDistanceSq(double ax, double ay, int a, double bx, double by, int b) {
+    double d = segmentsDistanceSq(ax, ay, coastX[a], coastY[a], bx, by, coastX[b], coastY[b]);
+    d = Math.min(d, segmentsDistanceSq(ax, ay, coastX[a], coastY[a], coastX[b], coastY[b], coastX[b+1], coastY[b+1]));
+    d = Math.min(d, segmentsDistanceSq(coastX[a], coastY[a], coastX[a+1], coastY[a+1], bx, by, coastX[b], coastY[b]));
+    return Math.min(d, segmentsDistanceSq(coastX[a], coastY[a], coastX[a+1], coastY[a+1], coastX[b], coastY[b], coastX[b+1], coastY[b+1]));
+  }
+
+  // zero if the segments cross, otherwise the nearest endpoint decides
+  private static double segmentsDistanceSq(double ax0, double ay0, double ax1, double ay1, double bx0, double by0, double bx1, double by1) {
+    if (segmentsCross(ax0, ay0, ax1, ay1, bx0, by0, bx1, by1)) return 0;
+    double d = segmentDistanceSq(ax0, ay0, bx0, by0, bx1, by1);
+    d = Math.min(d, segmentDistanceSq(ax1, ay1, bx0, by0, bx1, by1));
+    d = Math.min(d, segmentDistanceSq(bx0, by0, ax0, ay0, ax1, ay1));
+    return Math.min(d, segmentDistanceSq(bx1, by1, ax0, ay0, ax1, ay1));
+  }
+
+  // squared distance from (px, py) to the segment from (x0, y0) to (x1, y1)
+  public static double segmentDistanceSq(double px, double py, double x0, double y0, double x1, double y1) {
+    final double dx = x1 - x0, dy = y1 - y0;
+    final double len2 = dx * dx + dy * dy;
+    final double t = len2 == 0 ? 0 : clamp(((px - x0) * dx + (py - y0) * dy) / len2, 0, 1);
+    final double ex = x0 + dx * t - px, ey = y0 + dy * t - py;
+    return ex * ex + ey * ey;
+  }
+
+  private static boolean segmentsCross(double ax0, double ay0, double ax1, double ay1, double bx0, double by0, double bx1, double by1) {
+    final double d1 = cross(bx0, by0, bx1, by1, ax0, ay0), d2 = cross(bx0, by0, bx1, by1, ax1, ay1);
+    final double d3 = cross(ax0, ay0, ax1, ay1, bx0, by0), d4 = cross(ax0, ay0, ax1, ay1, bx1, by1);
+    return ((d1 > 0) != (d2 > 0)) && ((d3 > 0) != (d4 > 0));
+  }
+
+  private static double cross(double x0, double y0, double x1, double y1, double px, double py) {
+    return (x1 - x0) * (py - y0) - (y1 - y0) * (px - x0);
+  }
+
+  // distance a ball rolls from speed v until friction brings it under
+  // vThreshold, from integrating the decay curve
+  public static double stoppingDistance(double v) {
+    if (v <= vThreshold) return 0;
+    return (v - vThreshold) / -Math.log(groundFriction);
+  }
+
+  // the inverse: speed a ball needs to roll the given distance
+  public static double speedToRoll(double distance) {
+    return vThreshold + distance * -Math.log(groundFriction);
+  }
+
+  // past the cushions and into a pocket
+  public boolean isBorderColliding(double x, double y) {
+    return Math.abs(x) > 600-R || Math.abs(y) > 1200-R;
+  }
+
+  public boolean isWallColliding(double x, double y) {
+    return (Math.abs(x) > 600-R-R && Math.abs(y) < 1200-R*2.5 && Math.abs(y) > R) || (Math.abs(y) > 1200-R-R && Math.abs(x) < 600-R*2.5);
+  }
+
+  // true if a ball rolling straight from (x0, y0) to (x1, y1) would meet a
+  // cushion on the way, against the same slabs step() bounces off
+  public boolean isWallBetween(double x0, double y0, double x1, double y1) {
+    return wallEntry(x0, y0, x1 - x0, y1 - y0, 1) != null;
+  }
+
+  // what a ball rolling in a straight line meets first, see cast()
+  public static class Contact {
+    public enum Kind {BALL, CUSHION_X, CUSHION_Y, POCKET}
+
+    public final Kind kind;
+    // the ball hit, or -1
+    public final int ball;
+    // where the rolling ball's centre is when it gets there, and how far it went
+    public final double x, y, distance;
+
+    Contact(Kind kind, int ball, double x, double y, double distance) {
+      this.kind = kind; this.ball = ball;
+      this.x = x; this.y = y; this.distance = distance;
+    }
+
+    // the direction it leaves in, off a cushion; unchanged otherwise
+    public double bounceX(double dx) {
+      return kind == Kind.CUSHION_X ? -dx : dx;
+    }
+
+    public double bounceY(double dy) {
+      return kind == Kind.CUSHION_Y ? -dy : dy;
+    }
+  }
+
+  /*
+   * Sends a ball from (x0, y0) along the unit vector (dx, dy) and finds the
+   * first thing it meets: another ball, a cushion (the slabs step() bounces
+   * off) or the pocket line isBorderColliding() drops balls past. Worked
+   * out in closed form, without moving anything; ignore is the ball being
+   * sent, if it is on the table.
+   */
+  public Contact cast(double x0, double y0, double dx, double dy, int ignore) {
+    Contact.Kind kind = Contact.Kind.POCKET;
+    int ball = -1;
+
+    // past the rail, x or y first
+    double t = Double.POSITIVE_INFINITY;
+    if (dx != 0) t = Math.min(t, ((dx > 0 ? 600-R : -(600-R)) - x0) / dx);
+    if (dy != 0) t = Math.min(t, ((dy > 0 ? 1200-R : -(1200-R)) - y0) / dy);
+    t = Math.max(t, 0);
+
+    final WallEntry wall = wallEntry(x0, y0, dx, dy, t);
+    if (wall != null) {
+      t = wall.time;
+      kind = wall.xFace ? Contact.Kind.CUSHION_X : Contact.Kind.CUSHION_Y;
+    }
+
+    final double r2 = 4.0 * R * R;
+    for (int j = 0; j < count; j++) {
+      if (j == ignore || isScored(j)) continue;
+      final double fx = x0 - x[j], fy = y0 - y[j];
+      final double b = fx * dx + fy * dy;
+      if (b >= 0) continue; // heading away
+      final double c = fx * fx + fy * fy - r2;
+      final double disc = b * b - c;
+      if (disc < 0) continue;
+      final double toi = c <= 0 ? 0 : -b - Math.sqrt(disc);
+      if (toi < t) {
+        t = toi; kind = Contact.Kind.BALL; ball = j;
+      }
+    }
+    return new Contact(kind, ball, x0 + dx * t, y0 + dy * t, t);
+  }
+
+  public int getBallColliding(int b) {
+    return getBallColliding(x[b], y[b], b);
+  }
+
+  // first unscored ball overlapping a ball centred at (x, y), or -1
+  public int getBallColliding(double x, double y, int ignore) {
+    final BallGrid grid = grid();
+    if (!gridValid) {
+      grid.clear();
+      for (int k = 0; k < activeCount; k++) {
+        final int i = active[k];
+        grid.insert(i, this.x[i] - R, this.y[i] - R, this.x[i] + R, this.y[i] + R);
+      }
+      gridValid = true;
+    }
+    final int i = getBallColliding(grid, false, x, y, ignore);
+    return i != -1 ? i : getBallColliding(restGrid(), true, x, y, ignore);
+  }
+
+  private int getBallColliding(BallGrid grid, boolean sleeping, double x, double y, int ignore) {
+    final double r = 2 * R;
+    final int c1 = grid.col(x + R), r1 = grid.row(y + R);
+    for (int row = grid.row(y - R); row <= r1; row++) {
+      for (int c = grid.col(x - R); c <= c1; c++) {
+        for (int e = grid.head(c, row); e != -1; e = grid.next(e)) {
+          final int i = grid.ball(e);
+          if (i == ignore || isScored(i) || (activeIndex[i] == -1) != sleeping) continue;
+          final double dx = this.x[i] - x, dy = this.y[i] - y;
+          if (dx * dx + dy * dy < r * r) return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  // moves a ball by hand, e.g. placing the cue ball
+  public void setPosition(int i, double x, double y) {
+    this.x[i] = x; this.y[i] = y;
+    if (activeIndex[i] == -1) restValid = false;
+    else gridValid = false;
+  }
+
+  private BallGrid grid() {
+    if (grid == null) grid = newGrid(8 * capacity());
+    return grid;
+  }
+
+  private BallGrid restGrid() {
+    if (restGrid == null) restGrid = newGrid(4 * capacity());
+    if (!restValid) {
+      restGrid.clear();
+      for (int i = 0; i < count; i++) {
+        if (activeIndex[i] == -1 && !isScored(i)) restGrid.insert(i, x[i] - R, y[i] - R, x[i] + R, y[i] + R);
+      }
+      restValid = true;
+    }
+    return restGrid;
+  }
+
+  // cells are one ball across, with a margin for balls dropping into pockets
+  private BallGrid newGrid(int expectedEntries) {
+    return new BallGrid(2 * R, -600 - 4*R, -1200 - 4*R, 600 + 4*R, 1200 + 4*R, expectedEntries);
+  }
+
+  // true if ball b could sit at (x, y) without overlapping anything
+  public boolean canPlace(int b, double x, double y) {
+    return getBallColliding(x, y, b) == -1 && !isBorderColliding(x, y) && !isWallColliding(x, y);
+  }
+
+  /*
+   * Exchanges the normal components of a and b's velocities, losing a little
+   * to collisionFriction. Written out by hand so nothing is allocated.
+   */
+  void collide(int a, int b) {
+    final double nx = x[b] - x[a], ny = y[b] - y[a];
+    final double nn = nx * nx + ny * ny;
+    if (nn == 0) return;
+
+    final double an = (vx[a] * nx + vy[a] * ny) / nn;
+    final double bn = (vx[b] * nx + vy[b] * ny) / nn;
+    // tangent is (ny, -nx), which has the same length as the normal
+    final double at = (vx[a] * ny - vy[a] * nx) / nn;
+    final double bt = (vx[b] * ny - vy[b] * nx) / nn;
+
+    vx[a] = at * ny + bn * nx * collisionFriction;
+    vy[a] = -at * nx + bn * ny * collisionFriction;
+
+    vx[b] = bt * ny + an * nx * collisionFriction;
+    vy[b] = -bt * nx + an * ny * collisionFriction;
+  }
+
+  public static double clamp(double d) {
+    return d > 1 ? 1 : (d < -1 ? -1 : d);
+  }
+
+  public static double clamp(double d, double min, double max) {
+    return d > max ? max : (d < min ? min : d);
+  }
+
+  // wraps d into [min, max); double % is a slow library call, and d is
+  // nearly always in range already
+  public static double overflow(double d, double min, double max) {
+    if (d >= min && d < max) return d;
+    final double range = max - min;
+    return d - range * Math.floor((d - min) / range);
+  }
+}
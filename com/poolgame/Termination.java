@@ -0,0 +1,33 @@
+package com.poolgame;
+
+/*
+ * Lets a rollout stop as soon as the part of the outcome it cares about is
+ * known, instead of waiting for every ball to stop.
+ */
+public abstract class Termination {
+  // checked after every step; true ends the rollout there
+  public abstract boolean isDone(TableSimulation table);
+
+  public static Termination potted(final int slot) {
+    return new Termination() {
+      public boolean isDone(TableSimulation table) {
+        return table.isScored(slot);
+      }
+    };
+  }
+
+  public static Termination scratch() {
+    return potted(TableSimulation.CUE);
+  }
+
+  public static Termination anyOf(final Termination... terminations) {
+    return new Termination() {
+      public boolean isDone(TableSimulation table) {
+        for (Termination t : terminations) {
+          if (t.isDone(table)) return true;
+        }
+        return false;
+      }
+    };
+  }
+}
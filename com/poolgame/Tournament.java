@@ -0,0 +1,221 @@
+package com.poolgame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Headless AI-vs-AI games of 8-ball, for measuring the AI and the physics
+ * without watching the window. Games run in parallel, each with its own
+ * seed, and the two AIs take turns to break; every break moves the cue ball
+ * along the head string and varies the aim and power a little. Searches are
+ * given a fixed number of rollouts rather than a time budget and skip the
+ * shared outcome cache, so the same seed plays the same games.
+ *
+ *   java -cp bin com.poolgame.Tournament [games] [ai A] [ai B] [rollouts] [seed] [threads]
+ *
+ * The AIs are plain (ShotSearch), beam (BeamSearch) and search (what
+ * PoolGame.SearchAI plays: the EndgameSolver near the end, otherwise beam).
+ */
+public class Tournament {
+  private static final int CUE = TableSimulation.CUE;
+  private static final double dt = 0.02;
+  // a game still going after this many shots is a draw
+  private static final int maxShots = 200;
+  // a shot still moving after this many ticks (a minute of table time)
+  // abandons the game, rather than hang the whole run
+  private static final int maxShotTicks = (int)(60 / dt);
+
+  public static void main(String[] args) throws InterruptedException {
+    final int games = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    final String[] ais = {args.length > 1 ? args[1] : "search", args.length > 2 ? args[2] : "plain"};
+    final int rollouts = args.length > 3 ? Integer.parseInt(args[3]) : 400;
+    final long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+    final int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+    // fail fast on a misspelt AI
+    for (String ai : ais) search(ai, new TableSimulation(1), null, rollouts, 0);
+
+    System.out.printf("%d games, %s vs %s, %d rollouts a shot, seed %d, %d threads%n", games, ais[0], ais[1], rollouts, seed, threads);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final List<Future<Game>> futures = new ArrayList<Future<Game>>();
+    final long start = System.nanoTime();
+    for (int g = 0; g < games; g++) {
+      final Game game = new Game(ais, rollouts, seed + g, g % 2);
+      futures.add(executor.submit(game, game));
+    }
+
+    final List<Game> results = new ArrayList<Game>();
+    try {
+      for (Future<Game> future : futures) results.add(future.get());
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+    report(results, ais, (System.nanoTime() - start) / 1e9);
+  }
+
+  // a fresh search by the named AI, from the shooter's side of the table
+  static ShotSearch search(String ai, TableSimulation t, Boolean turn0IsSolid, int rollouts, long seed) {
+    ShotSearch search;
+    if (ai.equals("plain")) {
+      search = new ShotSearch(t, true, turn0IsSolid);
+    } else if (ai.equals("search") && EndgameSolver.applies(t, turn0IsSolid)) {
+      search = new EndgameSolver(t, true, turn0IsSolid);
+    } else if (ai.equals("beam") || ai.equals("search")) {
+      final BeamSearch beam = new BeamSearch(t, true, turn0IsSolid);
+      beam.maxRollouts = rollouts;
+      beam.random = new Random(seed);
+      search = beam;
+    } else {
+      throw new IllegalArgumentException("unknown AI " + ai + ", expected plain, beam or search");
+    }
+    search.cache = null;
+    return search;
+  }
+
+  static class Game implements Runnable {
+    final String[] ais;
+    final int rollouts, breaker;
+    final long seed;
+
+    // -1 for a draw, or if abandoned
+    int winner = -1, shots = 0;
+    boolean abandoned = false;
+    long ticks = 0;
+    final long[] rolloutsBy = new long[2];
+    // how long each decision took, by player
+    final long[][] decisions = {new long[16], new long[16]};
+    final int[] decisionCount = new int[2];
+
+    Game(String[] ais, int rollouts, long seed, int breaker) {
+      this.ais = ais; this.rollouts = rollouts;
+      this.seed = seed; this.breaker = breaker;
+    }
+
+    public void run() {
+      final Random random = new Random(seed);
+      final TableSimulation t = new TableSimulation(16);
+      PoolGame.rack(t);
+
+      // as in PoolGame, player 1 is the one whose turn is true
+      int player = breaker;
+      Boolean turn0IsSolid = null;
+      Shot shot = breakShot(t, random);
+      while (shots < maxShots) {
+        t.clearPocketed();
+        shot.apply(t);
+        int shotTicks = 0;
+        while (!t.step(dt)) {
+          ticks++;
+          if (++shotTicks == maxShotTicks) { abandoned = true; return; }
+        }
+        shots++;
+
+        boolean scored = false, eight = false;
+        final boolean scratch = t.isScored(CUE);
+        for (int k = 0; k < t.pocketedCount(); k++) {
+          final int b = t.pocketed(k);
+          if (b == CUE) continue;
+          if (t.number(b) == 8) { eight = true; continue; }
+          if (turn0IsSolid == null) turn0IsSolid = (player == 1) == t.isStriped(b);
+          if (turn0IsSolid == ((player == 1) == t.isStriped(b))) scored = true;
+        }
+        if (eight) {
+          final boolean won = !scratch && turn0IsSolid != null && ShotSearch.ballsLeft(t, side(player, turn0IsSolid)) == 0;
+          winner = won ? player : 1 - player;
+          return;
+        }
+        if (scratch) {
+          respot(t);
+          player = 1 - player;
+        } else if (!scored) {
+          player = 1 - player;
+        }
+
+        final Boolean solid = side(player, turn0IsSolid);
+        final ShotSearch search = search(ais[player], t, solid, rollouts, seed * 1000 + shots);
+        final long start = System.nanoTime();
+        shot = search.findShot();
+        record(player, System.nanoTime() - start);
+        rolloutsBy[player] += search.getRollouts();
+      }
+    }
+
+    private void record(int player, long nanos) {
+      if (decisionCount[player] == decisions[player].length) decisions[player] = Arrays.copyOf(decisions[player], decisionCount[player] * 2);
+      decisions[player][decisionCount[player]++] = nanos;
+    }
+  }
+
+  // turn0IsSolid as the searches see it, from the given player's side
+  static Boolean side(int player, Boolean turn0IsSolid) {
+    if (turn0IsSolid == null || player == 1) return turn0IsSolid;
+    return !turn0IsSolid;
+  }
+
+  // cue ball somewhere along the head string, hit hard at the apex ball
+  static Shot breakShot(TableSimulation t, Random random) {
+    t.setPosition(CUE, (random.nextDouble() * 2 - 1) * 300, 600);
+    final double angle = Math.atan2(t.x[CUE] - t.x[1], t.y[CUE] - t.y[1]) + (random.nextDouble() * 2 - 1) * 0.02;
+    return new Shot(Math.sin(angle), Math.cos(angle), 0, 0, Shot.maxDrawback * (0.85 + random.nextDouble() * 0.15));
+  }
+
+  // back on the table after a scratch, as PoolGame does, clear of other balls
+  static void respot(TableSimulation t) {
+    double y = 600;
+    while (t.getBallColliding(0, y, CUE) != -1) y += 2 * t.R;
+    t.setPosition(CUE, 0, y);
+    t.setScored(CUE, false);
+  }
+
+  static void report(List<Game> games, String[] ais, double seconds) {
+    final int[] wins = new int[2];
+    int draws = 0, abandoned = 0, breakerWins = 0;
+    long shots = 0, ticks = 0;
+    final long[] rollouts = new long[2];
+    for (Game game : games) {
+      if (game.abandoned) abandoned++;
+      else if (game.winner == -1) draws++;
+      else wins[game.winner]++;
+      if (game.winner == game.breaker) breakerWins++;
+      shots += game.shots; ticks += game.ticks;
+      for (int p = 0; p < 2; p++) rollouts[p] += game.rolloutsBy[p];
+    }
+
+    final int n = games.size();
+    for (int p = 0; p < 2; p++) {
+      System.out.printf("%-7s %s wins %d (%.1f%%)%n", p == 0 ? "A" : "B", ais[p], wins[p], 100.0 * wins[p] / n);
+    }
+    System.out.printf("draws %d, abandoned %d, breaker won %.1f%%, %.1f shots a game%n", draws, abandoned, 100.0 * breakerWins / n, (double)shots / n);
+    System.out.printf("%.1f s, %.2f games/s, %.0f physics ticks/s, %.0f rollouts/s%n",
+      seconds, n / seconds, ticks / seconds, (rollouts[0] + rollouts[1]) / seconds);
+
+    System.out.println("decision ms\tn\tp50\tp90\tp99\tmax\trollouts");
+    for (int p = 0; p < 2; p++) {
+      int count = 0;
+      for (Game game : games) count += game.decisionCount[p];
+      final long[] nanos = new long[count];
+      int k = 0;
+      for (Game game : games) {
+        System.arraycopy(game.decisions[p], 0, nanos, k, game.decisionCount[p]);
+        k += game.decisionCount[p];
+      }
+      Arrays.sort(nanos);
+      System.out.printf("%s %s\t%d\t%.1f\t%.1f\t%.1f\t%.1f\t%d%n", p == 0 ? "A" : "B", ais[p], count,
+        percentile(nanos, 50), percentile(nanos, 90), percentile(nanos, 99), count == 0 ? 0 : nanos[count - 1] / 1e6, rollouts[p]);
+    }
+  }
+
+  // in milliseconds, nearest rank
+  static double percentile(long[] sorted, double p) {
+    if (sorted.length == 0) return 0;
+    final int rank = (int)Math.ceil(p / 100 * sorted.length);
+    return sorted[Math.max(rank - 1, 0)] / 1e6;
+  }
+}
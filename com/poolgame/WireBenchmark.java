@@ -0,0 +1,144 @@
+package com.poolgame;
+
+import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Times encoding and decoding GAME and SHOT packets in the old text format
+ * against the binary one Connection sends now, and prints the bytes each
+ * puts on the wire. The GAME packet is taken mid-break, when every ball has
+ * a long decimal for each coordinate; the text size counts the newline.
+ * The text format lives on here only, as Connection used to write and
+ * parse it.
+ *
+ *   java -Djava.awt.headless=true -cp bin com.poolgame.WireBenchmark [rounds]
+ */
+public class WireBenchmark {
+  private static final int PACKETS = 20000;
+
+  public static void main(String[] args) throws IOException {
+    final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+    final PoolGame game = new PoolGame(null, false, false);
+    final Connection connection = new Connection(game);
+
+    final PoolGame.Savestate state = game.new Savestate();
+    new Shot(-0.05, 1, 0.2, -0.3, 500).apply(state._table);
+    for (int t = 0; t < 20; t++) state._table.step(0.02);
+    final Connection.Packet gamePacket = new Connection.Packet(state);
+    final Connection.Packet shotPacket = new Connection.Packet(
+      new Point2D.Double(-0.0499376169438922, 0.9987523388778447),
+      new Point2D.Double(0.2, -0.3), 487.5);
+
+    check(game, connection, gamePacket);
+    check(game, connection, shotPacket);
+
+    System.out.println("round\tpacket\ttext bytes\tbinary bytes\ttext enc/dec us\tbinary enc/dec us");
+    for (int round = 1; round <= rounds; round++) {
+      compare(game, connection, round, "GAME", gamePacket);
+      compare(game, connection, round, "SHOT", shotPacket);
+    }
+    System.exit(0);
+  }
+
+  private static void compare(PoolGame game, Connection connection, int round, String name, Connection.Packet packet) throws IOException {
+    final int n = name.equals("GAME") ? PACKETS / 10 : PACKETS;
+    // keeps the JIT from dropping the work
+    long sink = 0;
+
+    long start = System.nanoTime();
+    String text = null;
+    for (int k = 0; k < n; k++) {
+      text = toText(packet);
+      sink += text.length();
+    }
+    final double textEncode = (System.nanoTime() - start) / 1e3 / n;
+    start = System.nanoTime();
+    for (int k = 0; k < n; k++) sink += parseText(game, text).type.ordinal();
+    final double textDecode = (System.nanoTime() - start) / 1e3 / n;
+
+    start = System.nanoTime();
+    byte[] bytes = null;
+    for (int k = 0; k < n; k++) {
+      bytes = packet.toBytes();
+      sink += bytes.length;
+    }
+    final double binaryEncode = (System.nanoTime() - start) / 1e3 / n;
+    start = System.nanoTime();
+    for (int k = 0; k < n; k++) sink += connection.decode(ByteBuffer.wrap(bytes, 4, bytes.length - 4)).type.ordinal();
+    final double binaryDecode = (System.nanoTime() - start) / 1e3 / n;
+
+    final int textBytes = text.getBytes("UTF-8").length + 1;
+    System.out.printf("%d\t%s\t%d\t\t%d\t\t%.2f / %.2f\t\t%.2f / %.2f%s%n", round, name, textBytes, bytes.length,
+      textEncode, textDecode, binaryEncode, binaryDecode, sink == 0 ? " " : "");
+  }
+
+  // both formats must give back the packet that went in
+  private static void check(PoolGame game, Connection connection, Connection.Packet packet) throws IOException {
+    final byte[] bytes = packet.toBytes();
+    final Connection.Packet binary = connection.decode(ByteBuffer.wrap(bytes, 4, bytes.length - 4));
+    final Connection.Packet text = parseText(game, toText(packet));
+    if (!toText(binary).equals(toText(text))) throw new IllegalStateException("Formats disagree on " + packet.type);
+  }
+
+  private static String toText(Connection.Packet packet) {
+    if (packet.type == Connection.Packet.Type.SHOT) return packet.type.ordinal()+";"+packet.stick.x+";"+packet.stick.y+";"+packet.spin.x+";"+packet.spin.y+";"+packet.drawback;
+    if (packet.type == Connection.Packet.Type.GAME) return packet.type.ordinal()+";"+stateToText(packet.state);
+    return packet.type.ordinal()+";"+packet.message;
+  }
+
+  private static String stateToText(PoolGame.Savestate state) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(state._gamestate.ordinal() + ";");
+    sb.append(state._canMoveCue + ";");
+    sb.append(state._turn + ";");
+    sb.append(state._turn0IsSolid + ";");
+    final TableSimulation t = state._table;
+    for (int i = 0; i < t.size(); i++) {
+      sb.append(PoolGame.colorOf(t.number(i)).getRGB()+","+t.isStriped(i)+","+t.number(i)+","+t.x[i]+","+t.y[i]+","+t.vx[i]+","+t.vy[i]+","+t.spinX[i]+","+t.spinY[i]+","+t.rotX[i]+","+t.rotY[i]+","+t.isScored(i)+"|");
+    }
+    return sb.toString();
+  }
+
+  private static Connection.Packet parseText(PoolGame game, String line) {
+    String[] args = line.split(";");
+    if (args[0].equals("0")) return new Connection.Packet(line.substring(2));
+    if (args[0].equals("2")) return new Connection.Packet(game.new Savestate(
+      PoolGame.Gamestate.values()[Integer.parseInt(args[1])],
+      Boolean.parseBoolean(args[2]),
+      Boolean.parseBoolean(args[3]),
+      args[4].equals("null") ? null : Boolean.parseBoolean(args[4]),
+      parseBalls(args[5])
+    ).invert());
+    return new Connection.Packet(
+      new Point2D.Double(Double.parseDouble(args[1]), Double.parseDouble(args[2])),
+      new Point2D.Double(Double.parseDouble(args[3]), Double.parseDouble(args[4])),
+      Double.parseDouble(args[5])
+    );
+  }
+
+  // colours are implied by the ball number, so bArgs[0] is ignored
+  private static TableSimulation parseBalls(String line) {
+    String[] args = line.split("\\|");
+    TableSimulation table = new TableSimulation(args.length);
+    for (String s : args) {
+      String[] bArgs = s.split(",");
+      final int i = table.add(
+        Integer.parseInt(bArgs[2]),
+        Boolean.parseBoolean(bArgs[1]),
+        Double.parseDouble(bArgs[3]),
+        Double.parseDouble(bArgs[4])
+      );
+      table.vx[i] = Double.parseDouble(bArgs[5]);
+      table.vy[i] = Double.parseDouble(bArgs[6]);
+      table.spinX[i] = Double.parseDouble(bArgs[7]);
+      table.spinY[i] = Double.parseDouble(bArgs[8]);
+      table.rotX[i] = Double.parseDouble(bArgs[9]);
+      table.rotY[i] = Double.parseDouble(bArgs[10]);
+      table.setScored(i, Boolean.parseBoolean(bArgs[11]));
+      if (table.isMoving(i)) table.wake(i);
+    }
+    return table;
+  }
+}